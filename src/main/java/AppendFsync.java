@@ -0,0 +1,20 @@
+enum AppendFsync {
+    ALWAYS("always"),
+    EVERYSEC("everysec"),
+    NO("no");
+
+    final String configName;
+
+    AppendFsync(String configName) {
+        this.configName = configName;
+    }
+
+    static AppendFsync fromConfigName(String name) {
+        for (AppendFsync policy : values()) {
+            if (policy.configName.equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,454 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// The append only file: every write, as the RESP command that replays it, in the order the
+// writes were applied. A client only copies its command into an in-memory buffer; one writer
+// thread moves whatever has accumulated to the file and fsyncs it, so any number of clients
+// writing at once share a single write and a single fsync (group commit):
+//   always   - a reply to a logged write is sent only once the write is fsynced
+//   everysec - fsync at most once a second, off the client path; a crash loses about a second
+//   no       - leave flushing to the kernel
+// BGREWRITEAOF replaces the file with an RDB preamble of a keyspace snapshot followed by the
+// commands applied while the preamble was written, as Redis does with aof-use-rdb-preamble.
+class AppendOnlyFile {
+    private static final long FSYNC_INTERVAL_MILLIS = 1000;
+    // Appends wait for the writer once this much is buffered but not yet written
+    private static final int MAX_PENDING_BYTES = 64 << 20;
+    // auto-aof-rewrite-percentage and auto-aof-rewrite-min-size
+    private static final int AUTO_REWRITE_PERCENTAGE = 100;
+    private static final long AUTO_REWRITE_MIN_SIZE = 64L << 20;
+    // A rewrite copies the commands logged meanwhile in passes while clients keep writing, and
+    // switches files once a pass is this small or after this many passes
+    private static final int REWRITE_CATCH_UP_BYTES = 64 * 1024;
+    private static final int REWRITE_CATCH_UP_PASSES = 10;
+    private static final long SNAPSHOT_RETRY_MILLIS = 100;
+
+    private final Keyspace keyspace;
+    private volatile boolean enabled;
+    private volatile AppendFsync fsync = AppendFsync.EVERYSEC;
+    private volatile String dir = ".";
+    private volatile String filename = "appendonly.aof";
+
+    // Buffer state, guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dataAvailable = lock.newCondition();
+    private final Condition written = lock.newCondition();
+    private final Condition spaceAvailable = lock.newCondition();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private ByteArrayOutputStream rewriteBuffer;    // non-null while a rewrite runs
+    private long appendedOffset;                    // bytes ever appended
+    private long writtenOffset;                     // of those, bytes in the file (and fsynced for always)
+
+    // File state, guarded by fileLock; a thread that needs both takes fileLock first
+    private final ReentrantLock fileLock = new ReentrantLock();
+    private FileChannel channel;
+    // Volatile: the writer's idle check reads these under lock rather than fileLock
+    private volatile long lastFsync;
+    private volatile boolean unsynced;
+
+    private volatile long currentSize;
+    private volatile long baseSize;                 // size right after the last rewrite
+    private volatile boolean lastWriteOk = true;
+    private final AtomicBoolean rewriting = new AtomicBoolean();
+    private volatile long rewriteStartTime;
+    private volatile boolean lastRewriteOk = true;
+    private volatile long lastRewriteSeconds = -1;
+
+    AppendOnlyFile(Keyspace keyspace) {
+        this.keyspace = keyspace;
+    }
+
+    void setFile(String dir, String filename) {
+        this.dir = dir;
+        this.filename = filename;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean enabled() {
+        return enabled;
+    }
+
+    void setFsync(AppendFsync fsync) {
+        this.fsync = fsync;
+    }
+
+    AppendFsync fsync() {
+        return fsync;
+    }
+
+    boolean exists() {
+        return Files.exists(path());
+    }
+
+    private Path path() {
+        return Paths.get(dir, filename);
+    }
+
+    // Opens the file for appending and starts the writer. A new file on a non-empty keyspace
+    // (appendonly turned on over an existing RDB) is filled by a rewrite right away.
+    void start() throws IOException {
+        Path path = path();
+        boolean created = !Files.exists(path);
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        currentSize = channel.size();
+        baseSize = currentSize;
+        lastFsync = System.currentTimeMillis();
+        Thread writer = new Thread(this::runWriter, "aof-writer");
+        writer.setDaemon(true);
+        writer.start();
+        if (created && keyspace.size() > 0) {
+            backgroundRewrite();
+        }
+    }
+
+    // Logs one command and returns the offset just past it, for awaitWritten. Called with the
+    // lock that orders the write (the key's stripe or the stream lock) still held, so the log
+    // has writes to the same key in the order they were applied.
+    long append(byte[] command) {
+        lock.lock();
+        try {
+            while (pending.size() >= MAX_PENDING_BYTES) {
+                spaceAvailable.awaitUninterruptibly();
+            }
+            if (pending.size() == 0) {
+                dataAvailable.signal();
+            }
+            pending.write(command, 0, command.length);
+            if (rewriteBuffer != null) {
+                rewriteBuffer.write(command, 0, command.length);
+            }
+            appendedOffset += command.length;
+            return appendedOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // With appendfsync always, waits until everything up to offset is on disk. Every client
+    // waiting here is released by the same fsync.
+    void awaitWritten(long offset) {
+        if (fsync != AppendFsync.ALWAYS) return;
+        lock.lock();
+        try {
+            while (writtenOffset < offset) {
+                written.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runWriter() {
+        ByteArrayOutputStream spare = new ByteArrayOutputStream();
+        while (true) {
+            lock.lock();
+            try {
+                while (pending.size() == 0 && !fsyncDue()) {
+                    dataAvailable.await(FSYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            long end;
+            fileLock.lock();
+            try {
+                // Taken under fileLock so a rewrite switching files never sees half a chunk
+                ByteArrayOutputStream chunk;
+                lock.lock();
+                try {
+                    chunk = pending;
+                    pending = spare;
+                    end = appendedOffset;
+                    spaceAvailable.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                writeChunk(chunk.toByteArray());
+                chunk.reset();
+                spare = chunk;
+            } finally {
+                fileLock.unlock();
+            }
+
+            lock.lock();
+            try {
+                writtenOffset = Math.max(writtenOffset, end);
+                written.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (autoRewriteDue()) {
+                backgroundRewrite();
+            }
+        }
+    }
+
+    // Caller holds lock
+    private boolean fsyncDue() {
+        return fsync == AppendFsync.EVERYSEC && unsynced && System.currentTimeMillis() - lastFsync >= FSYNC_INTERVAL_MILLIS;
+    }
+
+    // Caller holds fileLock. A failed write is retried from where it stopped: a reply that
+    // waits on it must never go out for a command that is not in the file.
+    private void writeChunk(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (true) {
+            try {
+                while (buf.hasRemaining()) {
+                    currentSize += channel.write(buf);
+                }
+                unsynced |= bytes.length > 0;
+                long now = System.currentTimeMillis();
+                if (unsynced && (fsync == AppendFsync.ALWAYS
+                        || fsync == AppendFsync.EVERYSEC && now - lastFsync >= FSYNC_INTERVAL_MILLIS)) {
+                    channel.force(false);
+                    lastFsync = now;
+                    unsynced = false;
+                }
+                lastWriteOk = true;
+                return;
+            } catch (IOException e) {
+                if (lastWriteOk) {
+                    System.out.println("Error writing to the AOF: " + e.getMessage());
+                }
+                lastWriteOk = false;
+                try {
+                    Thread.sleep(FSYNC_INTERVAL_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean autoRewriteDue() {
+        long size = currentSize;
+        return !rewriting.get() && size >= AUTO_REWRITE_MIN_SIZE
+                && size - baseSize >= baseSize * AUTO_REWRITE_PERCENTAGE / 100;
+    }
+
+    // BGREWRITEAOF: returns false if a rewrite is already running
+    boolean backgroundRewrite() {
+        if (!rewriting.compareAndSet(false, true)) return false;
+        rewriteStartTime = System.currentTimeMillis();
+        new Thread(() -> {
+            try {
+                lastRewriteOk = rewrite();
+            } finally {
+                lastRewriteSeconds = (System.currentTimeMillis() - rewriteStartTime) / 1000;
+                rewriting.set(false);
+            }
+        }, "aof-rewrite").start();
+        return true;
+    }
+
+    private boolean rewrite() {
+        long start = System.nanoTime();
+        Path target = path();
+        Path temp = Paths.get(dir, "temp-rewriteaof-bg-" + ProcessHandle.current().pid() + ".aof");
+        // Buffering starts before the snapshot point, so a write either is in the snapshot or
+        // is logged after it. One in both is applied twice on load, which every logged form
+        // tolerates: SET is absolute, XADD of an existing ID fails, XTRIM and XGROUP repeat.
+        lock.lock();
+        try {
+            rewriteBuffer = new ByteArrayOutputStream();
+        } finally {
+            lock.unlock();
+        }
+        FileChannel out = null;
+        FileChannel replaced = null;
+        boolean switched = false;
+        try {
+            KeyspaceSnapshot snapshot;
+            while ((snapshot = keyspace.beginSnapshot(RdbWriter::encodeStream)) == null) {
+                Thread.sleep(SNAPSHOT_RETRY_MILLIS);     // a save is running; the rewrite goes next
+            }
+            out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                RdbSaver.writeRdb(keyspace, snapshot, Channels.newOutputStream(out));
+            } finally {
+                keyspace.endSnapshot(snapshot);
+            }
+            for (int pass = 0; pass < REWRITE_CATCH_UP_PASSES; pass++) {
+                byte[] logged = takeRewriteBuffer();
+                writeFully(out, logged);
+                if (logged.length < REWRITE_CATCH_UP_BYTES) break;
+            }
+            out.force(true);
+
+            // The switch: with the writer and every appender held off, add the last commands,
+            // make the new file durable and put it in place of the old one
+            fileLock.lock();
+            try {
+                lock.lock();
+                try {
+                    writeFully(out, rewriteBuffer.toByteArray());
+                    out.force(true);
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    switched = true;
+                    replaced = channel;
+                    channel = out;
+                    // Everything still pending is already in the new file
+                    pending.reset();
+                    rewriteBuffer = null;
+                    writtenOffset = appendedOffset;
+                    currentSize = out.size();
+                    baseSize = currentSize;
+                    lastFsync = System.currentTimeMillis();
+                    unsynced = false;
+                    written.signalAll();
+                    spaceAvailable.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                fileLock.unlock();
+            }
+            replaced.close();
+            System.out.println("Background AOF rewrite finished in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return true;
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Background AOF rewrite failed: " + e.getMessage());
+            return false;
+        } finally {
+            if (!switched) {
+                lock.lock();
+                try {
+                    rewriteBuffer = null;
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    if (out != null) out.close();
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // nothing more to do
+                }
+            }
+        }
+    }
+
+    private byte[] takeRewriteBuffer() {
+        lock.lock();
+        try {
+            byte[] logged = rewriteBuffer.toByteArray();
+            rewriteBuffer.reset();
+            return logged;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void writeFully(FileChannel out, byte[] bytes) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    // Rebuilds the keyspace from the file: the RDB preamble if there is one, then every logged
+    // command through replayer. A command cut short by a crash is dropped and truncated from
+    // the file, like aof-load-truncated; one that does not parse fails the load. Returns the
+    // number of commands replayed.
+    long load(ClientHandler replayer) throws IOException {
+        Path path = path();
+        long fileSize = Files.size(path);
+        RdbParser.status.begin(fileSize);
+        try {
+            return replay(path, fileSize, replayer);
+        } finally {
+            RdbParser.status.finish();
+        }
+    }
+
+    private long replay(Path path, long fileSize, ClientHandler replayer) throws IOException {
+        long preamble = 0;
+        try (InputStream in = new FileInputStream(path.toFile())) {
+            byte[] magic = in.readNBytes(5);
+            if ("REDIS".equals(new String(magic, StandardCharsets.ISO_8859_1))) {
+                try (InputStream rdb = new FileInputStream(path.toFile())) {
+                    preamble = RdbParser.loadPreamble(rdb, keyspace);
+                }
+            }
+        }
+
+        long commands = 0;
+        long valid = preamble;
+        OutputStream discard = OutputStream.nullOutputStream();
+        try (InputStream in = new FileInputStream(path.toFile())) {
+            in.skipNBytes(preamble);
+            RespDecoder decoder = new RespDecoder(64 * 1024);
+            while (true) {
+                byte[][] command;
+                while ((command = nextCommand(decoder, valid)) != null) {
+                    replayer.processCommand(RespDecoder.toStrings(command), discard);
+                    valid += encodedLength(command);
+                    if (++commands % 1024 == 0) {
+                        RdbParser.status.loadedBytes = valid;
+                    }
+                }
+                if (decoder.readFrom(in) < 0) break;
+            }
+        }
+        if (valid < fileSize) {
+            System.out.println("AOF ends with an incomplete command, truncating " + (fileSize - valid) + " bytes");
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                file.truncate(valid);
+            }
+        }
+        return commands;
+    }
+
+    // A bad command in the middle of the file is not a crash's torn tail: the rest of the
+    // file cannot be trusted, so the load fails rather than appending after it
+    private static byte[][] nextCommand(RespDecoder decoder, long offset) throws IOException {
+        try {
+            return decoder.next();
+        } catch (ProtocolException e) {
+            throw new IOException("Bad file format at offset " + offset + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static long encodedLength(byte[][] command) {
+        long length = 1 + Integer.toString(command.length).length() + 2;
+        for (byte[] arg : command) {
+            length += 1 + Integer.toString(arg.length).length() + 2 + arg.length + 2;
+        }
+        return length;
+    }
+
+    // The aof_ fields of INFO persistence, named as in Redis
+    String info() {
+        long now = System.currentTimeMillis();
+        return String.format("aof_enabled:%d\r\naof_rewrite_in_progress:%d\r\naof_last_rewrite_time_sec:%d\r\n"
+                        + "aof_current_rewrite_time_sec:%d\r\naof_last_bgrewrite_status:%s\r\naof_last_write_status:%s\r\n"
+                        + "aof_current_size:%d\r\naof_base_size:%d",
+                enabled ? 1 : 0, rewriting.get() ? 1 : 0, lastRewriteSeconds,
+                rewriting.get() ? (now - rewriteStartTime) / 1000 : -1, lastRewriteOk ? "ok" : "err",
+                lastWriteOk ? "ok" : "err", currentSize, baseSize);
+    }
+}
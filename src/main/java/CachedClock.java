@@ -0,0 +1,24 @@
+// Coarse wall clock refreshed by a daemon thread, so hot paths such as TTL checks read a
+// volatile field instead of calling System.currentTimeMillis() on every lookup
+class CachedClock {
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                now = System.currentTimeMillis();
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "cached-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    static long millis() {
+        return now;
+    }
+}
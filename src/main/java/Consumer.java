@@ -0,0 +1,14 @@
+import java.util.TreeMap;
+
+// A named reader of a consumer group, created on first use
+class Consumer {
+    final String name;
+    long seenTime;
+    // The same PendingEntry objects as the group's PEL, restricted to this consumer
+    final TreeMap<StreamId, PendingEntry> pending = new TreeMap<>();
+
+    Consumer(String name, long seenTime) {
+        this.name = name;
+        this.seenTime = seenTime;
+    }
+}
@@ -0,0 +1,65 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// A consumer group of a stream. As in Redis, the pending entries list (PEL) is kept twice,
+// once for the whole group and once per consumer, both sorted by ID, so XACK, XCLAIM and the
+// XPENDING/XREADGROUP history ranges are O(log n) lookups plus the entries returned.
+// Guarded by the owning Stream's lock.
+class ConsumerGroup {
+    final String name;
+    StreamId lastDelivered;
+    final TreeMap<StreamId, PendingEntry> pending = new TreeMap<>();
+    final Map<String, Consumer> consumers = new LinkedHashMap<>();
+
+    ConsumerGroup(String name, StreamId lastDelivered) {
+        this.name = name;
+        this.lastDelivered = lastDelivered;
+    }
+
+    Consumer consumer(String consumerName, long now) {
+        Consumer consumer = consumers.computeIfAbsent(consumerName, n -> new Consumer(n, now));
+        consumer.seenTime = now;
+        return consumer;
+    }
+
+    // Records a delivery by XREADGROUP; an entry that is already pending moves to consumer
+    void deliver(StreamId id, Consumer consumer, long now) {
+        PendingEntry entry = pending.get(id);
+        if (entry == null) {
+            entry = new PendingEntry(id, consumer, now);
+            pending.put(id, entry);
+            consumer.pending.put(id, entry);
+        } else {
+            transfer(entry, consumer);
+            entry.deliveryTime = now;
+            entry.deliveryCount++;
+        }
+    }
+
+    boolean ack(StreamId id) {
+        PendingEntry entry = pending.remove(id);
+        if (entry == null) return false;
+        entry.consumer.pending.remove(id);
+        return true;
+    }
+
+    void transfer(PendingEntry entry, Consumer consumer) {
+        if (entry.consumer != consumer) {
+            entry.consumer.pending.remove(entry.id);
+            entry.consumer = consumer;
+            consumer.pending.put(entry.id, entry);
+        }
+    }
+
+    // Removes the consumer and its pending entries; returns how many were pending
+    int deleteConsumer(String consumerName) {
+        Consumer consumer = consumers.remove(consumerName);
+        if (consumer == null) return 0;
+        int count = consumer.pending.size();
+        for (StreamId id : consumer.pending.keySet()) {
+            pending.remove(id);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,26 @@
+// CRC-64/Jones as used by Redis for the RDB trailer: reflected polynomial 0xad93d23594c935a9,
+// initial value 0, no final xor. Table driven, one lookup per byte.
+final class Crc64 {
+    private static final long POLY = 0x95ac9329ac4bc9b5L;     // 0xad93d23594c935a9 bit-reversed
+    private static final long[] TABLE = new long[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            long crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private Crc64() {
+    }
+
+    static long update(long crc, byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            crc = TABLE[(int) ((crc ^ bytes[i]) & 0xFF)] ^ (crc >>> 8);
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,219 @@
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+// Chained hash table keyed by byte[], like Redis's dict. The entries themselves are the
+// chain nodes. A resize allocates the new table and then moves a few buckets per write
+// (and per cron tick) instead of all at once, so no single command pays for rehashing
+// millions of keys. Not thread safe; Keyspace guards each Dict with its stripe lock.
+// Lookups and scans only read, so they may run under a shared lock; anything that moves
+// buckets needs the exclusive one.
+class Dict {
+    private static final int INITIAL_SIZE = 4;
+    // A rehash step gives up after visiting this many empty buckets per bucket it should move
+    private static final int EMPTY_VISITS_PER_STEP = 10;
+
+    private DictEntry[] table = new DictEntry[INITIAL_SIZE];
+    private DictEntry[] rehashTable;    // non-null while a resize is in progress
+    private int rehashIndex;            // buckets of table below this index are already moved
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    DictEntry get(byte[] key, int hash) {
+        DictEntry e = find(table, key, hash);
+        if (e == null && rehashTable != null) {
+            e = find(rehashTable, key, hash);
+        }
+        return e;
+    }
+
+    // Adds an entry whose key is known to be absent
+    void add(DictEntry entry) {
+        if (rehashTable != null) {
+            rehash(1);
+        } else if (size >= table.length) {
+            startResize(table.length * 2);
+        }
+        // New entries go straight to the new table while rehashing
+        DictEntry[] target = rehashTable != null ? rehashTable : table;
+        int index = entry.hash & (target.length - 1);
+        entry.next = target[index];
+        target[index] = entry;
+        size++;
+    }
+
+    // Grows the table ahead of a known number of inserts, like dictExpand, so a bulk load
+    // does not walk through every power of two. An empty table is replaced outright.
+    void expand(int capacity) {
+        if (rehashTable != null || capacity <= table.length) return;
+        int newLength = capacity >= 1 << 30 ? 1 << 30 : Integer.highestOneBit(capacity - 1) << 1;
+        if (size == 0) {
+            table = new DictEntry[newLength];
+        } else {
+            startResize(newLength);
+        }
+    }
+
+    DictEntry remove(byte[] key, int hash) {
+        if (rehashTable != null) {
+            rehash(1);
+        }
+        DictEntry e = unlink(table, key, hash);
+        if (e == null && rehashTable != null) {
+            e = unlink(rehashTable, key, hash);
+        }
+        if (e != null) {
+            size--;
+            // Shrink once the table is mostly empty, as Redis does from its cron
+            if (rehashTable == null && table.length > INITIAL_SIZE && size * 8 < table.length) {
+                startResize(Math.max(INITIAL_SIZE, Integer.highestOneBit(Math.max(1, size)) * 2));
+            }
+        }
+        return e;
+    }
+
+    // Moves up to n buckets to the new table; returns true if rehashing is still in progress
+    boolean rehash(int n) {
+        if (rehashTable == null) return false;
+        int emptyVisits = n * EMPTY_VISITS_PER_STEP;
+        while (n-- > 0 && rehashIndex < table.length) {
+            while (table[rehashIndex] == null) {
+                rehashIndex++;
+                if (rehashIndex == table.length || --emptyVisits == 0) {
+                    return finishIfDone();
+                }
+            }
+            DictEntry e = table[rehashIndex];
+            while (e != null) {
+                DictEntry next = e.next;
+                int index = e.hash & (rehashTable.length - 1);
+                e.next = rehashTable[index];
+                rehashTable[index] = e;
+                e = next;
+            }
+            table[rehashIndex++] = null;
+        }
+        return finishIfDone();
+    }
+
+    // Picks a random non-empty bucket, then a random entry of its chain, like dictGetRandomKey.
+    // Buckets of the old table below rehashIndex are known to be empty and are never picked.
+    DictEntry randomEntry() {
+        if (size == 0) return null;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        DictEntry head;
+        if (rehashTable == null) {
+            do {
+                head = table[random.nextInt(table.length)];
+            } while (head == null);
+        } else {
+            int span = table.length + rehashTable.length - rehashIndex;
+            do {
+                int index = rehashIndex + random.nextInt(span);
+                head = index < table.length ? table[index] : rehashTable[index - table.length];
+            } while (head == null);
+        }
+        int chainLength = 0;
+        for (DictEntry e = head; e != null; e = e.next) {
+            chainLength++;
+        }
+        DictEntry e = head;
+        for (int i = random.nextInt(chainLength); i > 0; i--) {
+            e = e.next;
+        }
+        return e;
+    }
+
+    void forEach(Consumer<DictEntry> action) {
+        forEach(table, action);
+        if (rehashTable != null) {
+            forEach(rehashTable, action);
+        }
+    }
+
+    // Redis's reverse binary cursor: visits the bucket(s) at cursor and returns the next cursor,
+    // 0 once the whole table was covered. Every entry present for the whole scan is returned
+    // at least once even if the table grows, shrinks or is rehashing between calls, because the
+    // cursor increments its high bits first and so stays meaningful for any power of two size.
+    long scan(long cursor, Consumer<DictEntry> action) {
+        if (size == 0) return 0;
+        if (rehashTable == null) {
+            long mask = table.length - 1;
+            emitBucket(table[(int) (cursor & mask)], action);
+            return nextCursor(cursor, mask);
+        }
+        DictEntry[] small = table.length <= rehashTable.length ? table : rehashTable;
+        DictEntry[] large = small == table ? rehashTable : table;
+        long smallMask = small.length - 1;
+        long largeMask = large.length - 1;
+        emitBucket(small[(int) (cursor & smallMask)], action);
+        // Then every bucket of the larger table that the small bucket expands to
+        do {
+            emitBucket(large[(int) (cursor & largeMask)], action);
+            cursor = nextCursor(cursor, largeMask);
+        } while ((cursor & (smallMask ^ largeMask)) != 0);
+        return cursor;
+    }
+
+    private static long nextCursor(long cursor, long mask) {
+        cursor |= ~mask;
+        cursor = Long.reverse(cursor);
+        cursor++;
+        return Long.reverse(cursor);
+    }
+
+    private static void emitBucket(DictEntry head, Consumer<DictEntry> action) {
+        for (DictEntry e = head; e != null; e = e.next) {
+            action.accept(e);
+        }
+    }
+
+    private static void forEach(DictEntry[] buckets, Consumer<DictEntry> action) {
+        for (DictEntry head : buckets) {
+            emitBucket(head, action);
+        }
+    }
+
+    private static DictEntry find(DictEntry[] buckets, byte[] key, int hash) {
+        for (DictEntry e = buckets[hash & (buckets.length - 1)]; e != null; e = e.next) {
+            if (e.hash == hash && Arrays.equals(e.key, key)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private static DictEntry unlink(DictEntry[] buckets, byte[] key, int hash) {
+        int index = hash & (buckets.length - 1);
+        DictEntry prev = null;
+        for (DictEntry e = buckets[index]; e != null; prev = e, e = e.next) {
+            if (e.hash == hash && Arrays.equals(e.key, key)) {
+                if (prev == null) {
+                    buckets[index] = e.next;
+                } else {
+                    prev.next = e.next;
+                }
+                e.next = null;
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private void startResize(int newLength) {
+        if (newLength == table.length) return;
+        rehashTable = new DictEntry[newLength];
+        rehashIndex = 0;
+    }
+
+    private boolean finishIfDone() {
+        if (rehashIndex < table.length) return true;
+        table = rehashTable;
+        rehashTable = null;
+        rehashIndex = 0;
+        return false;
+    }
+}
@@ -0,0 +1,36 @@
+import java.util.Arrays;
+
+// One key of the keyspace. Keys and string values are raw bytes, and the TTL, the LRU/LFU
+// metadata and the chain link live inline, so a small string costs this object plus its two
+// arrays instead of a map node, two Strings and a wrapper.
+class DictEntry {
+    final byte[] key;
+    final int hash;
+    Object value;               // byte[] for a string, Stream for a stream
+    long expiryTime;            // absolute unix ms, or -1
+    int lru;                    // LRU clock or LFU counter, see Keyspace
+    int volatileIndex = -1;     // position in its stripe's list of keys with a TTL
+    DictEntry next;             // next entry in the same bucket
+
+    DictEntry(byte[] key, int hash, Object value, long expiryTime) {
+        this.key = key;
+        this.hash = hash;
+        this.value = value;
+        this.expiryTime = expiryTime;
+    }
+
+    boolean isExpired() {
+        return expiryTime > 0 && CachedClock.millis() > expiryTime;
+    }
+
+    static int hash(byte[] key) {
+        // Arrays.hashCode followed by a murmur3 finalizer so both low and high bits are usable
+        int h = Arrays.hashCode(key);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
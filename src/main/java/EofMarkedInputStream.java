@@ -0,0 +1,56 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+// The RDB of a diskless full resync, which ends with the 40 byte mark announced in its
+// "$EOF:<mark>" header rather than having a length. Only bytes known to be followed by at
+// least a mark's worth more are handed out, so the mark itself never reaches the RDB parser,
+// and the stream ends once what is left is exactly the mark.
+class EofMarkedInputStream extends InputStream {
+    private final InputStream in;
+    private final byte[] mark;
+    private byte[] buf = new byte[64 * 1024];
+    private int start;
+    private int end;
+
+    EofMarkedInputStream(byte[] buffered, InputStream in, byte[] mark) {
+        this.in = in;
+        this.mark = mark;
+        if (buffered.length > buf.length) {
+            buf = new byte[buffered.length];
+        }
+        System.arraycopy(buffered, 0, buf, 0, buffered.length);
+        end = buffered.length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] dst, int offset, int length) throws IOException {
+        while (true) {
+            int releasable = end - start - mark.length;
+            if (releasable > 0) {
+                int n = Math.min(length, releasable);
+                System.arraycopy(buf, start, dst, offset, n);
+                start += n;
+                return n;
+            }
+            if (end - start == mark.length && Arrays.equals(buf, start, end, mark, 0, mark.length)) {
+                return -1;
+            }
+            if (end == buf.length) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            int n = in.read(buf, end, buf.length - end);
+            if (n < 0) throw new EOFException("Connection lost during the full resync");
+            end += n;
+        }
+    }
+}
@@ -0,0 +1,453 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Selector based server: a fixed set of event loops multiplexes every client socket,
+// so an idle connection costs a Connection object instead of a thread and its stack.
+// With threaded I/O the loops only read, parse and write, and hand every command to a
+// single CommandExecutor, like Redis 6's io-threads; blocking commands are the exception.
+class EventLoopServer {
+    private final int port;
+    private final EventLoop[] loops;
+    private final CommandExecutor executor;
+
+    public EventLoopServer(int port, int numLoops, boolean threadedIo) throws IOException {
+        this.port = port;
+        this.executor = threadedIo ? new CommandExecutor() : null;
+        this.loops = new EventLoop[numLoops];
+        for (int i = 0; i < numLoops; i++) {
+            loops[i] = new EventLoop(i, executor);
+        }
+    }
+
+    public void start() throws IOException {
+        if (executor != null) {
+            new Thread(executor, "command-executor").start();
+        }
+        for (EventLoop loop : loops) {
+            new Thread(loop, (executor != null ? "io-thread-" : "event-loop-") + loop.id).start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            System.out.println("Server started on port " + port + " with " + loops.length
+                    + (executor != null ? " I/O threads" : " event loops") + ", waiting for connections...");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+}
+
+// ByteArrayOutputStream that hands out its contents without copying
+class ReplyBuffer extends ByteArrayOutputStream {
+    ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+}
+
+class Connection {
+    final SocketChannel channel;
+    final ClientHandler handler;
+    final RespDecoder decoder = new RespDecoder(0);    // holds partially received commands only
+    SelectionKey key;
+    ByteBuffer pendingOutput;   // replies the socket did not accept yet
+    boolean blocked;            // a blocking command or a command batch is running off the loop
+    byte[][] heldCommand;       // parsed but left for after the batch in flight (threaded I/O)
+    boolean handedOff;          // connection moved to a dedicated thread (replication)
+
+    Connection(SocketChannel channel) {
+        this.channel = channel;
+        this.handler = new ClientHandler(channel.socket());
+    }
+}
+
+class EventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // Replies are written out between commands as soon as this much is buffered, so a long
+    // pipeline's replies reach the socket in chunks. A single reply is written out before it
+    // ends only by a command that flushes while it writes, as KEYS does; with threaded I/O the
+    // executor cannot touch the socket, so such a reply still comes back whole.
+    private static final int REPLY_FLUSH_THRESHOLD = 64 * 1024;
+
+    // XREAD BLOCK and WAIT park their thread, so they run here instead of on a loop or the
+    // executor. A virtual thread per command: they park on StreamWaiter and AckWaiter
+    // conditions, which unmount the thread, so thousands of blocked clients cost heap-sized
+    // stacks rather than a platform thread each. With threaded I/O they are the one kind of command that runs beside the
+    // executor: they take the stream and replication locks like any handler, and those locks
+    // stay for them (and for the other I/O modes) even though the executor is single threaded.
+    private static final ExecutorService blockingPool = Executors.newVirtualThreadPerTaskExecutor();
+
+    final int id;
+    private final CommandExecutor executor;     // null unless commands run off the loop
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Shared by every connection of this loop; per-connection state only holds leftovers
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final ReplyBuffer replyBuffer = new ReplyBuffer() {
+        @Override
+        public void flush() throws IOException {
+            if (serving != null && size() >= REPLY_FLUSH_THRESHOLD) {
+                flushReplies(serving);
+            }
+        }
+    };
+    private Connection serving;     // whose command is running on the loop, for flush()
+
+    EventLoop(int id, CommandExecutor executor) throws IOException {
+        this.id = id;
+        this.executor = executor;
+        this.selector = Selector.open();
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                Connection conn = new Connection(channel);
+                conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+            } catch (IOException e) {
+                System.out.println("IOException when registering client: " + e.getMessage());
+            }
+        });
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    // Queues a task without waking the loop, for a caller that queues several and then wakes
+    // it once
+    void executeLater(Runnable task) {
+        tasks.add(task);
+    }
+
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            handleWrite(conn);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            handleRead(conn);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        close(conn);
+                    }
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        System.out.println("Error in event loop task: " + e);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("IOException in event loop: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handleRead(Connection conn) throws IOException {
+        replyBuffer.reset();
+        readBuffer.clear();
+        int bytesRead = conn.channel.read(readBuffer);
+        if (bytesRead < 0) {
+            close(conn);
+            return;
+        }
+        readBuffer.flip();
+        conn.decoder.feed(readBuffer);
+
+        try {
+            processInput(conn);
+        } catch (ProtocolException e) {
+            replyBuffer.write(("-ERR " + e.getMessage() + "\r\n").getBytes());
+            flushReplies(conn);
+            close(conn);
+            return;
+        }
+        if (!conn.handedOff) {
+            flushReplies(conn);
+            updateInterest(conn);
+        }
+    }
+
+    // With threaded I/O, the commands parsed here are sent to the executor as one batch, and
+    // reading resumes once its replies come back; PSYNC and blocking commands wait for the
+    // batch before them
+    private void processInput(Connection conn) throws IOException {
+        List<String[]> batch = null;
+        byte[][] command;
+        while (!conn.blocked && (command = nextCommand(conn)) != null) {
+            String[] commandParts = RespDecoder.toStrings(command);
+            boolean psync = "PSYNC".equalsIgnoreCase(commandParts[0]);
+            boolean blocking = !psync && ClientHandler.isBlockingCommand(commandParts);
+            if (batch != null && (psync || blocking)) {
+                conn.heldCommand = command;
+                break;
+            }
+            if (psync) {
+                handOff(conn, command);
+                return;
+            }
+            if (blocking) {
+                dispatchBlocking(conn, commandParts);
+            } else if (executor != null) {
+                if (batch == null) batch = new ArrayList<>();
+                batch.add(commandParts);
+            } else {
+                serving = conn;
+                try {
+                    conn.handler.processCommand(commandParts, replyBuffer);
+                } finally {
+                    serving = null;
+                }
+            }
+            if (replyBuffer.size() >= REPLY_FLUSH_THRESHOLD) {
+                flushReplies(conn);
+            }
+        }
+        if (batch != null) {
+            conn.blocked = true;
+            executor.submit(new CommandBatch(this, conn, batch));
+        }
+    }
+
+    private static byte[][] nextCommand(Connection conn) throws IOException {
+        byte[][] command = conn.heldCommand;
+        if (command == null) return conn.decoder.next();
+        conn.heldCommand = null;
+        return command;
+    }
+
+    // The executor ran a batch; called on this loop
+    void complete(CommandBatch batch) {
+        resume(batch.conn, batch.replies);
+    }
+
+    private void dispatchBlocking(Connection conn, String[] commandParts) {
+        conn.blocked = true;
+        blockingPool.execute(() -> {
+            ReplyBuffer reply = new ReplyBuffer();
+            try {
+                conn.handler.processCommand(commandParts, reply);
+            } catch (IOException e) {
+                System.out.println("IOException in blocking command: " + e.getMessage());
+            } finally {
+                execute(() -> resume(conn, reply));     // never leave the connection blocked
+            }
+        });
+    }
+
+    private void resume(Connection conn, ReplyBuffer reply) {
+        if (!conn.channel.isOpen()) return;
+        try {
+            replyBuffer.reset();
+            reply.writeTo(replyBuffer);
+            conn.blocked = false;
+            processInput(conn);
+            if (!conn.handedOff) {
+                flushReplies(conn);
+                updateInterest(conn);
+            }
+        } catch (IOException e) {
+            close(conn);
+        }
+    }
+
+    // Replication links are few and long lived, so they keep the thread-per-connection handler
+    private void handOff(Connection conn, byte[][] psyncCommand) throws IOException {
+        conn.handedOff = true;
+        ReplyBuffer earlierReplies = new ReplyBuffer();
+        if (conn.pendingOutput != null) {
+            earlierReplies.write(remainingBytes(conn.pendingOutput));
+            conn.pendingOutput = null;
+        }
+        replyBuffer.writeTo(earlierReplies);
+        replyBuffer.reset();
+        // The new handler starts by re-reading PSYNC and anything pipelined after it
+        ReplyBuffer leftoverInput = new ReplyBuffer();
+        writeCommand(leftoverInput, psyncCommand);
+        byte[][] pipelined;
+        while ((pipelined = conn.decoder.next()) != null) {
+            writeCommand(leftoverInput, pipelined);
+        }
+        byte[] leftover = leftoverInput.toByteArray();
+
+        conn.key.cancel();
+        execute(() -> {
+            try {
+                selector.selectNow();       // completes the deregistration of the cancelled key
+                conn.channel.configureBlocking(true);
+                OutputStream out = conn.channel.socket().getOutputStream();
+                earlierReplies.writeTo(out);
+                out.flush();
+                new Thread(conn.handler.handOff(leftover)).start();
+            } catch (IOException e) {
+                System.out.println("IOException when handing off replica connection: " + e.getMessage());
+                close(conn);
+            }
+        });
+    }
+
+    private void handleWrite(Connection conn) throws IOException {
+        conn.channel.write(conn.pendingOutput);
+        if (!conn.pendingOutput.hasRemaining()) {
+            conn.pendingOutput = null;
+            updateInterest(conn);
+        }
+    }
+
+    private void flushReplies(Connection conn) throws IOException {
+        if (replyBuffer.size() == 0) return;
+        // With appendfsync always, this blocks the loop once per batch, as Redis's beforeSleep does
+        conn.handler.awaitAppendOnlyFile();
+        ByteBuffer reply = replyBuffer.toByteBuffer();
+        if (conn.pendingOutput == null) {
+            conn.channel.write(reply);
+            if (reply.hasRemaining()) {
+                conn.pendingOutput = ByteBuffer.wrap(remainingBytes(reply));
+            }
+        } else {
+            ByteBuffer combined = ByteBuffer.allocate(conn.pendingOutput.remaining() + reply.remaining());
+            combined.put(conn.pendingOutput).put(reply).flip();
+            conn.pendingOutput = combined;
+        }
+        replyBuffer.reset();
+    }
+
+    // Stop reading while replies are backed up or a blocking command is outstanding
+    private void updateInterest(Connection conn) {
+        if (!conn.key.isValid()) return;
+        int ops = 0;
+        if (conn.pendingOutput != null) {
+            ops = SelectionKey.OP_WRITE;
+        } else if (!conn.blocked) {
+            ops = SelectionKey.OP_READ;
+        }
+        conn.key.interestOps(ops);
+    }
+
+    private void close(Connection conn) {
+        conn.key.cancel();
+        try {
+            conn.channel.close();
+        } catch (IOException e) {
+            System.out.println("IOException when closing client channel: " + e.getMessage());
+        }
+    }
+
+    private static void writeCommand(ReplyBuffer out, byte[][] command) throws IOException {
+        out.write(String.format("*%d\r\n", command.length).getBytes());
+        for (byte[] arg : command) {
+            out.write(String.format("$%d\r\n", arg.length).getBytes());
+            out.write(arg);
+            out.write("\r\n".getBytes());
+        }
+    }
+
+    private static byte[] remainingBytes(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+}
+
+// Commands one event loop parsed from one connection, and the replies to them
+class CommandBatch {
+    final EventLoop loop;
+    final Connection conn;
+    final List<String[]> commands;
+    final ReplyBuffer replies = new ReplyBuffer();
+
+    CommandBatch(EventLoop loop, Connection conn, List<String[]> commands) {
+        this.loop = loop;
+        this.conn = conn;
+        this.commands = commands;
+    }
+}
+
+// The single thread that runs every command in threaded I/O mode but the blocking ones, in
+// the order batches arrive, so those commands never run concurrently with each other; the
+// keyspace locks then only meet background saves, expiry and a blocked XREAD or WAIT, see
+// EventLoop.blockingPool. It takes everything queued at once and wakes each event loop once
+// per round, so a busy server pays one wakeup per loop rather than per batch.
+class CommandExecutor implements Runnable {
+    private final BlockingQueue<CommandBatch> batches = new LinkedBlockingQueue<>();
+
+    void submit(CommandBatch batch) {
+        batches.add(batch);
+    }
+
+    @Override
+    public void run() {
+        List<CommandBatch> round = new ArrayList<>();
+        Set<EventLoop> toWake = new LinkedHashSet<>();
+        while (true) {
+            try {
+                round.add(batches.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            batches.drainTo(round);
+            for (CommandBatch batch : round) {
+                for (String[] commandParts : batch.commands) {
+                    try {
+                        batch.conn.handler.processCommand(commandParts, batch.replies);
+                    } catch (IOException e) {
+                        System.out.println("IOException in command executor: " + e.getMessage());
+                    }
+                }
+                batch.loop.executeLater(() -> batch.loop.complete(batch));
+                toWake.add(batch.loop);
+            }
+            for (EventLoop loop : toWake) {
+                loop.wakeup();
+            }
+            toWake.clear();
+            round.clear();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+enum EvictionPolicy {
+    NOEVICTION("noeviction"),
+    ALLKEYS_LRU("allkeys-lru"),
+    ALLKEYS_LFU("allkeys-lfu"),
+    VOLATILE_TTL("volatile-ttl");
+
+    final String configName;
+
+    EvictionPolicy(String configName) {
+        this.configName = configName;
+    }
+
+    static EvictionPolicy fromConfigName(String name) {
+        for (EvictionPolicy policy : values()) {
+            if (policy.configName.equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,107 @@
+// Glob-style matching for KEYS and SCAN MATCH with the same syntax as Redis's stringmatchlen:
+// * and ? wildcards, [abc], [^abc] and [a-z] classes, and \ to escape the next character.
+// Works on raw bytes and never recurses: on a mismatch it resumes after the last star with
+// one more subject byte consumed by it, which bounds the work at O(pattern * subject).
+class Glob {
+    private final byte[] pattern;
+    private final boolean matchesAll;
+    private final boolean literal;
+
+    Glob(byte[] pattern) {
+        this.pattern = pattern;
+        boolean onlyStars = true;
+        boolean noSpecials = true;
+        for (byte c : pattern) {
+            if (c != '*') onlyStars = false;
+            if (c == '*' || c == '?' || c == '[' || c == '\\') noSpecials = false;
+        }
+        this.matchesAll = onlyStars && pattern.length > 0;
+        this.literal = noSpecials;
+    }
+
+    // True if the pattern matches exactly one string, itself, so it can be looked up directly
+    boolean isLiteral() {
+        return literal;
+    }
+
+    byte[] pattern() {
+        return pattern;
+    }
+
+    boolean matches(byte[] subject) {
+        if (matchesAll) return true;
+        int p = 0;
+        int s = 0;
+        int starP = -1;     // pattern position just after the last star seen
+        int starS = 0;      // subject position that star has consumed up to
+        while (s < subject.length) {
+            if (p < pattern.length) {
+                if (pattern[p] == '*') {
+                    while (p < pattern.length && pattern[p] == '*') p++;
+                    if (p == pattern.length) return true;
+                    starP = p;
+                    starS = s;
+                    continue;
+                }
+                int next = matchOne(p, subject[s]);
+                if (next >= 0) {
+                    p = next;
+                    s++;
+                    continue;
+                }
+            }
+            if (starP < 0) return false;
+            p = starP;
+            s = ++starS;
+        }
+        while (p < pattern.length && pattern[p] == '*') p++;
+        return p == pattern.length;
+    }
+
+    // Matches the single-character token at p against c; returns the index after the token,
+    // or -1 if it does not match
+    private int matchOne(int p, byte c) {
+        switch (pattern[p]) {
+            case '?':
+                return p + 1;
+            case '[':
+                return matchClass(p + 1, c);
+            case '\\':
+                if (p + 1 < pattern.length) {
+                    return pattern[p + 1] == c ? p + 2 : -1;
+                }
+                return c == '\\' ? p + 1 : -1;
+            default:
+                return pattern[p] == c ? p + 1 : -1;
+        }
+    }
+
+    // An unterminated class runs to the end of the pattern, as in Redis
+    private int matchClass(int p, byte c) {
+        boolean negate = p < pattern.length && pattern[p] == '^';
+        if (negate) p++;
+        boolean matched = false;
+        while (p < pattern.length && pattern[p] != ']') {
+            if (pattern[p] == '\\' && p + 1 < pattern.length) {
+                if (pattern[p + 1] == c) matched = true;
+                p += 2;
+            } else if (p + 2 < pattern.length && pattern[p + 1] == '-' && pattern[p + 2] != ']') {
+                int start = pattern[p] & 0xFF;
+                int end = pattern[p + 2] & 0xFF;
+                if (start > end) {
+                    int swap = start;
+                    start = end;
+                    end = swap;
+                }
+                int value = c & 0xFF;
+                if (value >= start && value <= end) matched = true;
+                p += 3;
+            } else {
+                if (pattern[p] == c) matched = true;
+                p++;
+            }
+        }
+        if (p < pattern.length) p++;    // the closing ]
+        return matched != negate ? p : -1;
+    }
+}
@@ -0,0 +1,697 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+// The database: every key with its value, type, TTL and an estimate of the memory it uses.
+// Keys are spread over lock stripes so GETs run in parallel on every core, while writes to
+// a key are serialized by its stripe's write lock and therefore linearizable per key.
+class Keyspace {
+    static final int STRIPES = 64;      // power of two
+    private static final int STRIPE_BITS = Integer.numberOfTrailingZeros(STRIPES);
+    private static final int STRIPE_SHIFT = 32 - STRIPE_BITS;
+    // Rough per-key cost of the DictEntry, its bucket slot and the two array headers
+    static final long ENTRY_OVERHEAD = 80;
+
+    // Active expiry runs EXPIRE_CYCLE_HZ times a second and may use a quarter of each period
+    private static final int EXPIRE_CYCLE_HZ = 10;
+    private static final long EXPIRE_CYCLE_BUDGET_NANOS = 25_000_000L;
+    private static final int EXPIRE_SAMPLE_SIZE = 20;
+    // Buckets the expire cycle moves per stripe visit, so idle stripes still finish resizing
+    private static final int REHASH_BUCKETS_PER_CYCLE = 100;
+
+    // Eviction compares this many random candidates, and a single write evicts at most
+    // MAX_EVICTIONS_PER_WRITE keys so SET latency stays flat when running at the limit
+    private static final int EVICTION_SAMPLES = 5;
+    private static final int MAX_EVICTIONS_PER_WRITE = 32;
+
+    // Per-entry access metadata packed into DictEntry.lru, as Redis does: a 24 bit
+    // seconds clock for LRU, or for LFU a 16 bit minutes clock above an 8 bit log counter
+    private static final int LRU_CLOCK_MAX = (1 << 24) - 1;
+    private static final int LFU_INIT_VAL = 5;
+    private static final int LFU_LOG_FACTOR = 10;
+    private static final int LFU_DECAY_MINUTES = 1;
+
+    private static final class Stripe {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final Dict entries = new Dict();
+        // Keys that have a TTL, so the expire cycle and volatile-ttl can pick random ones in O(1)
+        final List<DictEntry> volatileEntries = new ArrayList<>();
+        // While a snapshot has not copied this stripe yet: the state each changed key had at
+        // the snapshot point, a null value meaning it did not exist. Null otherwise.
+        Dict snapshotPreImages;
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicLong usedMemory = new AtomicLong();
+    // Changes since the last save, for the save policies
+    private final LongAdder dirty = new LongAdder();
+    private volatile KeyspaceSnapshot snapshot;
+    private long snapshotEpoch;     // guarded by holding every stripe lock
+    private int expireCursor;       // stripe the next expire cycle starts from
+
+    private volatile KeyRemovalListener removalListener;
+    private volatile long maxMemory = 0;        // 0 means unlimited
+    private volatile EvictionPolicy evictionPolicy = EvictionPolicy.NOEVICTION;
+
+    Keyspace() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    // The stripe uses the high hash bits, the Dict buckets the low ones
+    private Stripe stripeFor(int hash) {
+        return stripes[stripeIndex(hash)];
+    }
+
+    // Exposed so bulk loaders can partition keys by stripe and never contend on a lock
+    static int stripeIndex(int hash) {
+        return hash >>> STRIPE_SHIFT;
+    }
+
+    // Returns the live entry for key, or null if it is missing or expired
+    DictEntry get(byte[] key) {
+        int hash = DictEntry.hash(key);
+        Stripe stripe = stripeFor(hash);
+        DictEntry entry;
+        stripe.lock.readLock().lock();
+        try {
+            entry = stripe.entries.get(key, hash);
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+        if (entry == null) return null;
+        if (entry.isExpired()) {
+            removeIfExpired(stripe, key, hash);
+            return null;
+        }
+        // Racy by design: concurrent readers may lose an update, which only blurs the estimate
+        entry.lru = touched(entry.lru);
+        return entry;
+    }
+
+    byte[] getString(byte[] key) throws WrongTypeException {
+        Object value = getValue(key);
+        if (value == null) return null;
+        if (!(value instanceof byte[])) throw new WrongTypeException();
+        return (byte[]) value;
+    }
+
+    // Like get, but reads the value once under the stripe lock, so a SET racing to replace it
+    // with another type cannot land between the caller's type check and its cast
+    private Object getValue(byte[] key) {
+        int hash = DictEntry.hash(key);
+        Stripe stripe = stripeFor(hash);
+        DictEntry entry;
+        Object value;
+        stripe.lock.readLock().lock();
+        try {
+            entry = stripe.entries.get(key, hash);
+            if (entry == null) return null;
+            value = entry.isExpired() ? null : entry.value;
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+        if (value == null) {
+            removeIfExpired(stripe, key, hash);
+            return null;
+        }
+        entry.lru = touched(entry.lru);
+        return value;
+    }
+
+    void set(byte[] key, byte[] value, long expiryTime) {
+        set(key, value, expiryTime, null);
+    }
+
+    // afterWrite runs before the stripe lock is released, so logging the write there keeps
+    // the log in the order concurrent writes to the key were applied
+    void set(byte[] key, byte[] value, long expiryTime, Runnable afterWrite) {
+        int hash = DictEntry.hash(key);
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.writeLock().lock();
+        try {
+            DictEntry entry = stripe.entries.get(key, hash);
+            if (entry == null) {
+                addEntry(stripe, new DictEntry(key, hash, value, expiryTime));
+            } else {
+                // Overwrite in place: the entry object and its key array are reused
+                keepPreImage(stripe, key, hash, entry);
+                dirty.increment();
+                usedMemory.addAndGet(sizeOf(value) - sizeOf(entry.value));
+                entry.value = value;
+                entry.lru = initialLru();
+                setExpiry(stripe, entry, expiryTime);
+            }
+            if (afterWrite != null) {
+                afterWrite.run();
+            }
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    // Empties the keyspace, as a replica does before loading a full resync
+    void clear() {
+        List<DictEntry> entries = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            stripe.lock.writeLock().lock();
+            try {
+                entries.clear();
+                stripe.entries.forEach(entries::add);
+                for (DictEntry entry : entries) {
+                    removeEntry(stripe, entry.key, entry.hash);
+                }
+            } finally {
+                stripe.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Returns whether a live key was removed. afterRemove runs under the stripe lock whenever
+    // an entry went away, expired or not, so the removal is logged in order like set's writes.
+    boolean remove(byte[] key, Runnable afterRemove) {
+        int hash = DictEntry.hash(key);
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.writeLock().lock();
+        try {
+            DictEntry previous = removeEntry(stripe, key, hash);
+            if (previous != null && afterRemove != null) {
+                afterRemove.run();
+            }
+            return previous != null && !previous.isExpired();
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    // Bulk insert for the RDB loader: entries are grouped by stripe so each stripe's write
+    // lock is taken once per batch. A key already present is replaced. Reorders batch.
+    void insertBatch(List<DictEntry> batch) {
+        batch.sort(Comparator.comparingInt(entry -> stripeIndex(entry.hash)));
+        int i = 0;
+        while (i < batch.size()) {
+            Stripe stripe = stripeFor(batch.get(i).hash);
+            stripe.lock.writeLock().lock();
+            try {
+                for (; i < batch.size() && stripeFor(batch.get(i).hash) == stripe; i++) {
+                    DictEntry entry = batch.get(i);
+                    removeEntry(stripe, entry.key, entry.hash);
+                    addEntry(stripe, entry);
+                }
+            } finally {
+                stripe.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Sizes the stripe tables for about expectedKeys keys in all, from the RDB resize-db hint
+    void presize(long expectedKeys) {
+        int perStripe = (int) Math.min(1 << 30, expectedKeys / STRIPES + 1);
+        for (Stripe stripe : stripes) {
+            stripe.lock.writeLock().lock();
+            try {
+                stripe.entries.expand(perStripe);
+            } finally {
+                stripe.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Returns the stream stored at key, or null if there is none
+    Stream getStream(byte[] key) throws WrongTypeException {
+        Object value = getValue(key);
+        if (value == null) return null;
+        if (!(value instanceof Stream)) throw new WrongTypeException();
+        return (Stream) value;
+    }
+
+    Stream getOrCreateStream(byte[] key) throws WrongTypeException {
+        int hash = DictEntry.hash(key);
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.writeLock().lock();
+        try {
+            DictEntry entry = stripe.entries.get(key, hash);
+            if (entry != null && entry.isExpired()) {
+                expungeEntry(stripe, key, hash);
+                entry = null;
+            }
+            if (entry == null) {
+                Stream stream = new Stream();
+                KeyspaceSnapshot running = snapshot;
+                if (running != null) {
+                    stream.snapshotEpoch = running.epoch;   // not part of the running snapshot
+                }
+                entry = new DictEntry(key, hash, stream, -1);
+                addEntry(stripe, entry);
+            }
+            if (!(entry.value instanceof Stream)) throw new WrongTypeException();
+            return (Stream) entry.value;
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    // Stream commands call this under the stream lock before changing it: a running snapshot
+    // that has not written the stream yet gets its encoded pre-image first (copy-on-write)
+    void beforeStreamWrite(Stream stream) {
+        dirty.increment();
+        KeyspaceSnapshot running = snapshot;
+        if (running != null && stream.snapshotEpoch != running.epoch) {
+            running.streamPreImages.put(stream, running.streamEncoder.apply(stream));
+            stream.snapshotEpoch = running.epoch;
+        }
+    }
+
+    // Streams change in place, so XADD and XTRIM report how much their memory use moved
+    void streamResized(long deltaBytes) {
+        usedMemory.addAndGet(deltaBytes);
+    }
+
+    String type(byte[] key) {
+        DictEntry entry = get(key);
+        return entry == null ? "none" : typeOf(entry);
+    }
+
+    static String typeOf(DictEntry entry) {
+        return entry.value instanceof byte[] ? "string" : "stream";
+    }
+
+    // One SCAN step: adds about count live entries to result and returns the cursor to continue
+    // from, 0 when done. The low cursor bits select the stripe and the rest is that stripe's Dict
+    // cursor, so each call holds one stripe's read lock for one bucket at a time. As in Redis,
+    // at most 10 * count buckets are visited so a sparse keyspace still returns promptly.
+    long scan(long cursor, int count, List<DictEntry> result) {
+        int stripeIndex = (int) (cursor & (STRIPES - 1));
+        long dictCursor = cursor >>> STRIPE_BITS;
+        int target = result.size() + count;
+        long maxBuckets = count * 10L;
+        while (result.size() < target && maxBuckets-- > 0) {
+            Stripe stripe = stripes[stripeIndex];
+            stripe.lock.readLock().lock();
+            try {
+                dictCursor = stripe.entries.scan(dictCursor, entry -> {
+                    if (!entry.isExpired()) {
+                        result.add(entry);
+                    }
+                });
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+            if (dictCursor == 0 && ++stripeIndex == STRIPES) {
+                return 0;
+            }
+        }
+        return (dictCursor << STRIPE_BITS) | stripeIndex;
+    }
+
+    // The keys of the live entries that filter accepts. Each stripe is walked whole under its
+    // read lock, so a key is returned once even while the stripe's Dict rehashes, which a
+    // SCAN walk does not promise.
+    List<byte[]> keys(Predicate<byte[]> filter) {
+        List<byte[]> keys = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                stripe.entries.forEach(entry -> {
+                    if (!entry.isExpired() && filter.test(entry.key)) {
+                        keys.add(entry.key);
+                    }
+                });
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+        return keys;
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                size += stripe.entries.size();
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    long usedMemory() {
+        return usedMemory.get();
+    }
+
+    long maxMemory() {
+        return maxMemory;
+    }
+
+    void setMaxMemory(long bytes) {
+        maxMemory = bytes;
+    }
+
+    EvictionPolicy evictionPolicy() {
+        return evictionPolicy;
+    }
+
+    void setEvictionPolicy(EvictionPolicy policy) {
+        evictionPolicy = policy;
+    }
+
+    // Set once the data set is loaded: removals while loading are not news to anyone
+    void setRemovalListener(KeyRemovalListener listener) {
+        removalListener = listener;
+    }
+
+    // Called before every write command. Evicts a bounded number of keys when over maxmemory;
+    // returns false only if the write must be refused because nothing can be evicted.
+    boolean makeRoomForWrite() {
+        long limit = maxMemory;
+        if (limit <= 0 || usedMemory.get() <= limit) return true;
+        if (evictionPolicy == EvictionPolicy.NOEVICTION) return false;
+
+        int evicted = 0;
+        while (usedMemory.get() > limit && evicted < MAX_EVICTIONS_PER_WRITE) {
+            if (!evictOne()) break;
+            evicted++;
+        }
+        return evicted > 0 || usedMemory.get() <= limit;
+    }
+
+    // Samples a few random keys from a random stripe and evicts the best candidate
+    private boolean evictOne() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        EvictionPolicy policy = evictionPolicy;
+        int first = random.nextInt(STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            Stripe stripe = stripes[(first + i) & (STRIPES - 1)];
+            stripe.lock.writeLock().lock();
+            try {
+                List<DictEntry> volatileEntries = stripe.volatileEntries;
+                boolean volatileOnly = policy == EvictionPolicy.VOLATILE_TTL;
+                if (volatileOnly ? volatileEntries.isEmpty() : stripe.entries.size() == 0) continue;
+
+                DictEntry best = null;
+                long bestScore = Long.MIN_VALUE;
+                for (int n = 0; n < EVICTION_SAMPLES; n++) {
+                    DictEntry candidate = volatileOnly
+                            ? volatileEntries.get(random.nextInt(volatileEntries.size()))
+                            : stripe.entries.randomEntry();
+                    long score = evictionScore(policy, candidate);
+                    if (score > bestScore) {
+                        bestScore = score;
+                        best = candidate;
+                    }
+                }
+                expungeEntry(stripe, best.key, best.hash);
+                return true;
+            } finally {
+                stripe.lock.writeLock().unlock();
+            }
+        }
+        return false;
+    }
+
+    // Higher means a better candidate for eviction
+    private long evictionScore(EvictionPolicy policy, DictEntry entry) {
+        switch (policy) {
+            case ALLKEYS_LFU:
+                return 255 - lfuDecayedCounter(entry.lru);
+            case VOLATILE_TTL:
+                return -entry.expiryTime;
+            default:
+                return (lruClock() - entry.lru) & LRU_CLOCK_MAX;
+        }
+    }
+
+    private int initialLru() {
+        return evictionPolicy == EvictionPolicy.ALLKEYS_LFU ? (lfuMinutes() << 8) | LFU_INIT_VAL : lruClock();
+    }
+
+    private int touched(int lru) {
+        if (evictionPolicy != EvictionPolicy.ALLKEYS_LFU) return lruClock();
+        int counter = lfuDecayedCounter(lru);
+        if (counter < 255) {
+            double p = 1.0 / ((counter - LFU_INIT_VAL) * LFU_LOG_FACTOR + 1);
+            if (counter < LFU_INIT_VAL || ThreadLocalRandom.current().nextDouble() < p) {
+                counter++;
+            }
+        }
+        return (lfuMinutes() << 8) | counter;
+    }
+
+    private static int lfuDecayedCounter(int lru) {
+        int elapsed = (lfuMinutes() - (lru >>> 8)) & 0xFFFF;
+        int counter = lru & 0xFF;
+        int periods = elapsed / LFU_DECAY_MINUTES;
+        return periods > counter ? 0 : counter - periods;
+    }
+
+    private static int lruClock() {
+        return (int) (CachedClock.millis() / 1000) & LRU_CLOCK_MAX;
+    }
+
+    private static int lfuMinutes() {
+        return (int) (CachedClock.millis() / 60_000) & 0xFFFF;
+    }
+
+    void startActiveExpiry() {
+        Thread expirer = new Thread(() -> {
+            while (true) {
+                activeExpireCycle();
+                try {
+                    Thread.sleep(1000 / EXPIRE_CYCLE_HZ);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "active-expire");
+        expirer.setDaemon(true);
+        expirer.start();
+    }
+
+    // Redis style adaptive sampling: test random keys with a TTL in each stripe and sample the
+    // stripe again while more than a quarter of a sample was expired, within a fixed time budget.
+    // The next cycle resumes at the stripe where this one ran out of time. Like Redis's
+    // databasesCron it also advances any resize the stripe's Dict has in progress.
+    void activeExpireCycle() {
+        long deadline = System.nanoTime() + EXPIRE_CYCLE_BUDGET_NANOS;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int visited = 0; visited < STRIPES; visited++) {
+            Stripe stripe = stripes[expireCursor];
+            expireCursor = (expireCursor + 1) & (STRIPES - 1);
+            int expired;
+            do {
+                expired = 0;
+                stripe.lock.writeLock().lock();
+                try {
+                    stripe.entries.rehash(REHASH_BUCKETS_PER_CYCLE);
+                    List<DictEntry> volatileEntries = stripe.volatileEntries;
+                    for (int i = 0; i < EXPIRE_SAMPLE_SIZE && !volatileEntries.isEmpty(); i++) {
+                        DictEntry entry = volatileEntries.get(random.nextInt(volatileEntries.size()));
+                        if (entry.isExpired()) {
+                            expungeEntry(stripe, entry.key, entry.hash);
+                            expired++;
+                        }
+                    }
+                } finally {
+                    stripe.lock.writeLock().unlock();
+                }
+            } while (expired > EXPIRE_SAMPLE_SIZE / 4 && System.nanoTime() < deadline);
+            if (System.nanoTime() >= deadline) return;
+        }
+    }
+
+    long dirty() {
+        return dirty.sum();
+    }
+
+    // A save that captured `changes` of the dirty count subtracts them once it succeeds
+    void clearDirty(long changes) {
+        dirty.add(-changes);
+    }
+
+    // Starts a point-in-time snapshot for a save. Taking every stripe lock at once makes this
+    // the instant the save captures; afterwards writers keep pre-images until the saver has
+    // copied their stripe, so the save never blocks writes for longer than one stripe copy.
+    // Returns null if another snapshot is running.
+    KeyspaceSnapshot beginSnapshot(Function<Stream, byte[]> streamEncoder) {
+        return beginSnapshot(streamEncoder, null);
+    }
+
+    // atSnapshotPoint runs while every stripe is locked, so no SET is half way between being
+    // applied and being propagated: a replica sync reads the replication offset there
+    KeyspaceSnapshot beginSnapshot(Function<Stream, byte[]> streamEncoder, Runnable atSnapshotPoint) {
+        for (Stripe stripe : stripes) {
+            stripe.lock.writeLock().lock();
+        }
+        try {
+            if (snapshot != null) return null;
+            long keys = 0;
+            long volatileKeys = 0;
+            for (Stripe stripe : stripes) {
+                keys += stripe.entries.size();
+                volatileKeys += stripe.volatileEntries.size();
+                stripe.snapshotPreImages = new Dict();
+            }
+            snapshot = new KeyspaceSnapshot(++snapshotEpoch, keys, volatileKeys, dirty.sum(), streamEncoder);
+            if (atSnapshotPoint != null) {
+                atSnapshotPoint.run();
+            }
+            return snapshot;
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                stripes[i].lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Adds stripe i as it was at the snapshot point to out: the live entries overlaid with the
+    // pre-images of keys changed since. Entries are copies, safe to read without the lock.
+    // The read lock is enough: it keeps writers, the only users of the pre-images, out.
+    void snapshotStripe(KeyspaceSnapshot running, int i, List<DictEntry> out) {
+        Stripe stripe = stripes[i];
+        stripe.lock.readLock().lock();
+        try {
+            Dict preImages = stripe.snapshotPreImages;
+            stripe.entries.forEach(entry -> {
+                if (preImages.size() == 0 || preImages.get(entry.key, entry.hash) == null) {
+                    out.add(new DictEntry(entry.key, entry.hash, entry.value, entry.expiryTime));
+                }
+            });
+            preImages.forEach(preImage -> {
+                if (preImage.value != null) out.add(preImage);
+            });
+            stripe.snapshotPreImages = null;
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    // The encoded content a stream had at the snapshot point, or null if it was created later
+    byte[] snapshotStream(KeyspaceSnapshot running, Stream stream) {
+        stream.lock.lock();
+        try {
+            if (stream.snapshotEpoch == running.epoch) {
+                return running.streamPreImages.remove(stream);
+            }
+            stream.snapshotEpoch = running.epoch;
+            return running.streamEncoder.apply(stream);
+        } finally {
+            stream.lock.unlock();
+        }
+    }
+
+    // Ends the snapshot, also when the save gave up before copying every stripe
+    void endSnapshot(KeyspaceSnapshot running) {
+        for (Stripe stripe : stripes) {
+            stripe.lock.writeLock().lock();
+            try {
+                stripe.snapshotPreImages = null;
+            } finally {
+                stripe.lock.writeLock().unlock();
+            }
+        }
+        running.streamPreImages.clear();
+        snapshot = null;
+    }
+
+    // addEntry, removeEntry and setExpiry keep memory accounting, the TTL index and snapshot
+    // pre-images in step with the Dict; callers hold the stripe's write lock
+    private void addEntry(Stripe stripe, DictEntry entry) {
+        keepPreImage(stripe, entry.key, entry.hash, null);
+        dirty.increment();
+        entry.lru = initialLru();
+        stripe.entries.add(entry);
+        if (entry.expiryTime > 0) {
+            entry.volatileIndex = stripe.volatileEntries.size();
+            stripe.volatileEntries.add(entry);
+        }
+        usedMemory.addAndGet(ENTRY_OVERHEAD + entry.key.length + sizeOf(entry.value));
+    }
+
+    private DictEntry removeEntry(Stripe stripe, byte[] key, int hash) {
+        if (stripe.snapshotPreImages != null) {
+            keepPreImage(stripe, key, hash, stripe.entries.get(key, hash));
+        }
+        DictEntry previous = stripe.entries.remove(key, hash);
+        if (previous != null) {
+            dirty.increment();
+            usedMemory.addAndGet(-(ENTRY_OVERHEAD + previous.key.length + sizeOf(previous.value)));
+            if (previous.volatileIndex >= 0) {
+                untrackVolatile(stripe, previous);
+            }
+        }
+        return previous;
+    }
+
+    private void setExpiry(Stripe stripe, DictEntry entry, long expiryTime) {
+        entry.expiryTime = expiryTime;
+        if (expiryTime > 0 && entry.volatileIndex < 0) {
+            entry.volatileIndex = stripe.volatileEntries.size();
+            stripe.volatileEntries.add(entry);
+        } else if (expiryTime <= 0 && entry.volatileIndex >= 0) {
+            untrackVolatile(stripe, entry);
+        }
+    }
+
+    // Records the key's state before its first change since the snapshot point, if the
+    // running snapshot has not copied this stripe yet; current null means the key was absent
+    private static void keepPreImage(Stripe stripe, byte[] key, int hash, DictEntry current) {
+        Dict preImages = stripe.snapshotPreImages;
+        if (preImages == null || preImages.get(key, hash) != null) return;
+        preImages.add(current == null
+                ? new DictEntry(key, hash, null, -1)
+                : new DictEntry(key, hash, current.value, current.expiryTime));
+    }
+
+    // Swap-remove: the last entry of the list moves into the freed slot
+    private void untrackVolatile(Stripe stripe, DictEntry entry) {
+        List<DictEntry> entries = stripe.volatileEntries;
+        DictEntry last = entries.remove(entries.size() - 1);
+        if (last != entry) {
+            entries.set(entry.volatileIndex, last);
+            last.volatileIndex = entry.volatileIndex;
+        }
+        entry.volatileIndex = -1;
+    }
+
+    private void removeIfExpired(Stripe stripe, byte[] key, int hash) {
+        stripe.lock.writeLock().lock();
+        try {
+            DictEntry entry = stripe.entries.get(key, hash);
+            if (entry != null && entry.isExpired()) {
+                expungeEntry(stripe, key, hash);
+            }
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    // Removes a key the server drops on its own, by expiry or eviction, and tells the listener
+    private void expungeEntry(Stripe stripe, byte[] key, int hash) {
+        DictEntry previous = removeEntry(stripe, key, hash);
+        KeyRemovalListener listener = removalListener;
+        if (previous != null && listener != null) {
+            listener.keyRemoved(previous.key);
+        }
+    }
+
+    private static long sizeOf(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        return ((Stream) value).memoryUsage();
+    }
+}
+
+// Told about each key the keyspace expires or evicts, under the key's stripe write lock
+interface KeyRemovalListener {
+    void keyRemoved(byte[] key);
+}
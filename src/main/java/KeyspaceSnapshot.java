@@ -0,0 +1,21 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// A save in progress, see Keyspace.beginSnapshot. Streams are mutated in place, so their
+// pre-images are kept already encoded, keyed by identity.
+class KeyspaceSnapshot {
+    final long epoch;
+    final long keys;            // at the snapshot point, for the RDB resize-db hint
+    final long volatileKeys;
+    final long dirty;           // Keyspace.dirty() at the snapshot point
+    final Function<Stream, byte[]> streamEncoder;
+    final ConcurrentHashMap<Stream, byte[]> streamPreImages = new ConcurrentHashMap<>();
+
+    KeyspaceSnapshot(long epoch, long keys, long volatileKeys, long dirty, Function<Stream, byte[]> streamEncoder) {
+        this.epoch = epoch;
+        this.keys = keys;
+        this.volatileKeys = volatileKeys;
+        this.dirty = dirty;
+        this.streamEncoder = streamEncoder;
+    }
+}
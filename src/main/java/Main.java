@@ -1,58 +1,87 @@
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.stream.Stream;
 
 
-class ValueWithExpiry{
-    String value;
-    long expiryTime;
-
-    public ValueWithExpiry(String value,long expiryTime){
-        this.value =value;
-        this.expiryTime = expiryTime;
-    }
-
-    public boolean isExpired(){
-        return expiryTime > 0 && System.currentTimeMillis() > expiryTime;
-    }
-}
-
-class StreamEntry{
-    String id;
-    Map<String,String> fields;
-
-    public StreamEntry(String id,Map<String,String> fields){
-        this.id = id;
-        this.fields = fields;
-    }
-}
-
-// Thread to handle client communication
-class ClientHandler extends Thread {
+// Handles client communication; runs on its own thread or is driven by an event loop
+class ClientHandler implements Runnable {
     private final Socket clientSocket;
-    public static Map<String, ValueWithExpiry> KeyValueStore = new HashMap<>();
-    private static List<Socket> replicas = new CopyOnWriteArrayList<>();
+    private final byte[] initialInput;
+    // Set once this connection's PSYNC made it a replica
+    private ReplicaLink replicaLink;
+    private int listeningPort;      // announced by a replica with REPLCONF listening-port
+    public static final Keyspace keyspace = new Keyspace();
+    static final RdbSaver rdbSaver = new RdbSaver(keyspace);
+    static final AppendOnlyFile aof = new AppendOnlyFile(keyspace);
+    static final Replication replication = new Replication(keyspace);
 
     private static String dir;
     private static String dbfilename;
     private static boolean isReplica;
 
-
-    // Hardcoded replication ID and offset
-    private static final String REPLICATION_ID = "8371b4fb1155b71f4a04d3e1bc3e18c4a990aeeb";
-    private static final long REPLICATION_OFFSET = 0;
-    static final Map<Long, Integer> replicaAcknowledgment = new HashMap<>();
-    static final Object waitLock = 0;
-    static long currentOffset = 0;
-    boolean ACKFlag = false;
-
-    private static final Map<String,List<StreamEntry>> streams = new HashMap<>();
+    // Set on the handler that replays the AOF at startup: its writes are already logged
+    private boolean replaying;
+    // Set on the handler that applies the master's stream on a replica: the one writer there
+    private boolean fromMaster;
+    // End of this client's last logged write, which its next reply must not overtake
+    private long aofOffset;
+    // Replication offset just past this client's last write, which WAIT waits for
+    private long replOffset;
+
+    // Preencoded replies for the hottest commands
+    private static final byte[] OK_REPLY = "+OK\r\n".getBytes();
+    private static final byte[] NULL_BULK_REPLY = "$-1\r\n".getBytes();
+    private static final byte[] PONG_REPLY = "+PONG\r\n".getBytes();
+    private static final byte[] CRLF = "\r\n".getBytes();
+    private static final byte[] OOM_REPLY = "-OOM command not allowed when used memory > 'maxmemory'.\r\n".getBytes();
+
+    private static final Set<String> WRITE_COMMANDS = Set.of("SET", "XADD");
+    // Commands that change the data set, which only the master may send a replica
+    private static final Set<String> REPLICA_READONLY_COMMANDS = Set.of("SET", "DEL", "XADD", "XTRIM", "XGROUP", "XREADGROUP", "XACK", "XCLAIM");
+    private static final Set<String> XCLAIM_OPTIONS = Set.of("IDLE", "TIME", "RETRYCOUNT", "FORCE", "JUSTID", "LASTID");
+    private static final byte[] READONLY_REPLY = "-READONLY You can't write against a read only replica.\r\n".getBytes();
+    // Commands that do not touch the keyspace and so work while an RDB is loading
+    private static final Set<String> LOADING_COMMANDS = Set.of("PING", "ECHO", "INFO", "CONFIG");
+    private static final byte[] LOADING_REPLY = "-LOADING Redis is loading the dataset in memory\r\n".getBytes();
+    // Entries KEYS collects per keyspace.scan call, i.e. per stripe lock acquisition
+    private static final int KEYS_FLUSH_INTERVAL = 1000;
+
+    // Readers parked by XREAD BLOCK, by stream key
+    private static final StreamWaiters streamWaiters = new StreamWaiters();
 
     public ClientHandler(Socket socket) {
+        this(socket, null);
+    }
+
+    // initialInput holds bytes an event loop already read from the socket before handing it off
+    public ClientHandler(Socket socket, byte[] initialInput) {
         this.clientSocket = socket;
+        this.initialInput = initialInput;
+    }
+
+    // The handler an event loop hands the connection to for PSYNC, keeping what the replica
+    // announced with REPLCONF before it
+    ClientHandler handOff(byte[] initialInput) {
+        ClientHandler handler = new ClientHandler(clientSocket, initialInput);
+        handler.listeningPort = listeningPort;
+        return handler;
+    }
+
+    // A handler with no connection that applies logged commands without logging them again
+    static ClientHandler replayer() {
+        ClientHandler handler = new ClientHandler(null);
+        handler.replaying = true;
+        return handler;
+    }
+
+    // A handler with no connection that applies the master's replication stream
+    static ClientHandler masterClient() {
+        ClientHandler handler = new ClientHandler(null);
+        handler.fromMaster = true;
+        return handler;
     }
 
     public static void setDir(String dirPath){
@@ -68,32 +97,88 @@ class ClientHandler extends Thread {
     }
 
     private void handleKeysCommand(String[] commandParts, OutputStream out) throws IOException {
-        if (commandParts.length < 1){
-            out.write("-ERR unsupported KEYS pattern\r\n".getBytes());
+        if (commandParts.length != 2){
+            out.write("-ERR wrong number of arguments for 'KEYS' command\r\n".getBytes());
+            return;
+        }
+        Glob pattern = new Glob(RespDecoder.toBytes(commandParts[1]));
+        if (pattern.isLiteral()) {
+            DictEntry entry = keyspace.get(pattern.pattern());
+            if (entry == null) {
+                out.write("*0\r\n".getBytes());
+            } else {
+                out.write("*1\r\n".getBytes());
+                writeBulkString(out, entry.key);
+            }
             return;
         }
-        StringBuilder response = new StringBuilder();
-        response.append("*").append(KeyValueStore.size()).append("\r\n");
 
-        for (String key: KeyValueStore.keySet()){
-            response.append(String.format("$%d\r\n%s\r\n", key.length(), key));
+        // One pass, a stripe at a time under its read lock, so each key is seen once; only
+        // references to the matching keys are kept. The reply is flushed every
+        // KEYS_FLUSH_INTERVAL keys, so a long one reaches the socket while it is written.
+        List<byte[]> keys = keyspace.keys(pattern::matches);
+        out.write(("*" + keys.size() + "\r\n").getBytes());
+        for (int i = 0; i < keys.size(); i++) {
+            writeBulkString(out, keys.get(i));
+            if ((i + 1) % KEYS_FLUSH_INTERVAL == 0) {
+                out.flush();
+            }
         }
-        out.write(response.toString().getBytes());
     }
 
-    private String[] parseRespCommand(BufferedReader reader, String firstLine) throws IOException{
-        int numElements = Integer.parseInt(firstLine.substring(1));
-        String[] commandParts = new String[numElements];
+    private void handleScanCommand(String[] commandParts, OutputStream out) throws IOException {
+        if (commandParts.length < 2 || commandParts.length % 2 != 0) {
+            out.write("-ERR wrong number of arguments for 'SCAN' command\r\n".getBytes());
+            return;
+        }
+        long cursor;
+        try {
+            cursor = Long.parseUnsignedLong(commandParts[1]);
+        } catch (NumberFormatException e) {
+            out.write("-ERR invalid cursor\r\n".getBytes());
+            return;
+        }
+
+        Glob pattern = null;
+        int count = 10;
+        String type = null;
+        for (int i = 2; i < commandParts.length; i += 2) {
+            String option = commandParts[i];
+            if ("MATCH".equalsIgnoreCase(option)) {
+                pattern = new Glob(RespDecoder.toBytes(commandParts[i + 1]));
+            } else if ("COUNT".equalsIgnoreCase(option)) {
+                try {
+                    count = Integer.parseInt(commandParts[i + 1]);
+                } catch (NumberFormatException e) {
+                    count = 0;
+                }
+                if (count < 1) {
+                    out.write("-ERR syntax error\r\n".getBytes());
+                    return;
+                }
+            } else if ("TYPE".equalsIgnoreCase(option)) {
+                type = commandParts[i + 1].toLowerCase();
+            } else {
+                out.write("-ERR syntax error\r\n".getBytes());
+                return;
+            }
+        }
 
-        for(int i=0;i<numElements;i++){
-            String lengthLine = reader.readLine();
-            if(lengthLine.startsWith("$")){
-                String bulkString = reader.readLine();
-                commandParts[i] = bulkString;
+        List<DictEntry> batch = new ArrayList<>();
+        long nextCursor = keyspace.scan(cursor, count, batch);
+        List<byte[]> keys = new ArrayList<>(batch.size());
+        for (DictEntry entry : batch) {
+            if ((pattern == null || pattern.matches(entry.key)) && (type == null || type.equals(Keyspace.typeOf(entry)))) {
+                keys.add(entry.key);
             }
         }
-        System.out.println("Master: Parsed RESP Command: " + String.join(", ", commandParts));
-        return commandParts;
+
+        out.write("*2\r\n".getBytes());
+        writeBulkString(out, Long.toUnsignedString(nextCursor));
+        out.write(("*" + keys.size() + "\r\n").getBytes());
+        for (byte[] key : keys) {
+            writeBulkString(out, key);
+        }
     }
 
     private void handleSetCommand(String[] commandParts, OutputStream out) throws IOException {
@@ -101,72 +186,128 @@ class ClientHandler extends Thread {
             out.write("-ERR wrong number of arguments for 'SET' command\r\n".getBytes());
             return;
         }
-        String key = commandParts[1];
-        String value = commandParts[2];
+        byte[] key = RespDecoder.toBytes(commandParts[1]);
+        byte[] value = RespDecoder.toBytes(commandParts[2]);
         long expiryTime = -1;
 
         if(commandParts.length >= 5 && commandParts[3].equalsIgnoreCase("PX")){
             try{
                 long expiryInMilliseconds = Long.parseLong(commandParts[4]);
-                expiryTime = System.currentTimeMillis() + expiryInMilliseconds;
+                expiryTime = CachedClock.millis() + expiryInMilliseconds;
             }
             catch (NumberFormatException e){
                 out.write("-ERR invalid PX argument\r\n".getBytes());
                 return;
             }
         }
+        else if(commandParts.length >= 5 && commandParts[3].equalsIgnoreCase("PXAT")){
+            try{
+                expiryTime = Long.parseLong(commandParts[4]);
+            }
+            catch (NumberFormatException e){
+                out.write("-ERR invalid PXAT argument\r\n".getBytes());
+                return;
+            }
+        }
 
-        KeyValueStore.put(key, new ValueWithExpiry(value,expiryTime));
+        // Logged with an absolute expiry, so a replay does not extend the TTL
+        long loggedExpiry = expiryTime;
+        keyspace.set(key, value, expiryTime, () -> {
+            if (loggedExpiry > 0) {
+                propagate("SET", commandParts[1], commandParts[2], "PXAT", Long.toString(loggedExpiry));
+            } else {
+                propagate("SET", commandParts[1], commandParts[2]);
+            }
+        });
+
+        out.write(OK_REPLY);
+    }
 
-        out.write("+OK\r\n".getBytes());
+    // DEL key [key ...]
+    private void handleDelCommand(String[] commandParts, OutputStream out) throws IOException {
+        if (commandParts.length < 2) {
+            out.write("-ERR wrong number of arguments for 'DEL' command\r\n".getBytes());
+            return;
+        }
+        int removed = 0;
+        for (int i = 1; i < commandParts.length; i++) {
+            String key = commandParts[i];
+            if (keyspace.remove(RespDecoder.toBytes(key), () -> propagate("DEL", key))) {
+                removed++;
+            }
+        }
+        out.write((":" + removed + "\r\n").getBytes());
+    }
 
-        String respCommand = String.format("*3\r\n$3\r\nSET\r\n$%d\r\n%s\r\n$%d\r\n%s\r\n", key.length(), key, value.length(), value);
-//        String ackCommand  = "*3\r\n$8\r\nREPLCONF\r\n$6\r\nGETACK\r\n$1\r\n*\r\n";
-        currentOffset=0;
-        synchronized (waitLock){
-            replicaAcknowledgment.put(currentOffset,0);
+    // Keys the server expires or evicts on its own are logged as a DEL, as Redis does, so a
+    // replay or a replica does not keep them. A replica leaves that to its master's DELs.
+    static void propagateRemoval(byte[] key) {
+        if (isReplica || (!aof.enabled() && !replication.active())) return;
+        byte[] command = RespDecoder.encode("DEL", new String(key, StandardCharsets.ISO_8859_1));
+        if (aof.enabled()) {
+            aof.append(command);
         }
+        replication.feed(command);
+    }
 
-        for(Socket replicaSocket : replicas){
-            try{
-                OutputStream replicaOut = replicaSocket.getOutputStream();
-                replicaOut.write(respCommand.getBytes());
-//                replicaOut.write(ackCommand.getBytes());
-//                System.out.println("getack send to replica");
-                replicaOut.flush();
-            }
-            catch (IOException e){
-                System.out.println("Failed to send commands to replica: "  +e.getMessage());
-            }
+    // Sends a write to the AOF and the replicas in the form that replays it. Called under the
+    // lock that orders the write, see AppendOnlyFile.append.
+    private void propagate(String... args) {
+        if (replaying || (!aof.enabled() && !replication.active())) return;
+        byte[] command = RespDecoder.encode(args);
+        if (aof.enabled()) {
+            aofOffset = aof.append(command);
+        }
+        replOffset = replication.feed(command);
+    }
+
+    // With appendfsync always, holds this client's replies until its writes are on disk
+    void awaitAppendOnlyFile() {
+        if (aofOffset > 0) {
+            aof.awaitWritten(aofOffset);
+            aofOffset = 0;
         }
     }
-    private void handleGetCommand(String[] commandParts, OutputStream out) throws IOException{
+
+    private void handleGetCommand(String[] commandParts, OutputStream out) throws IOException, WrongTypeException {
 
         if(commandParts.length < 2){
             out.write("-ERR wrong number of arguments for 'GET' command\r\n".getBytes());
             return;
         }
 
-        String key = commandParts[1];
-        ValueWithExpiry valueWithExpiry = KeyValueStore.get(key);
-
-        if(valueWithExpiry != null){
-            if(valueWithExpiry.isExpired()){
-                KeyValueStore.remove(key);
-                out.write("$-1\r\n".getBytes());
-            }
-            else{
-                String value = valueWithExpiry.value;
-                out.write(String.format("$%d\r\n%s\r\n", value.length(), value).getBytes());
-            }
+        byte[] value = keyspace.getString(RespDecoder.toBytes(commandParts[1]));
+        if(value != null){
+            writeBulkString(out, value);
         }
         else{
-            out.write("$-1\r\n".getBytes());
+            out.write(NULL_BULK_REPLY);
         }
     }
 
+    // GET while an RDB is loading: replies and returns true only if the key is already loaded
+    private boolean serveLoadedKey(String[] commandParts, OutputStream out) throws IOException, WrongTypeException {
+        if (commandParts.length < 2) return false;
+        byte[] value = keyspace.getString(RespDecoder.toBytes(commandParts[1]));
+        if (value == null) return false;
+        writeBulkString(out, value);
+        return true;
+    }
+
+    private static void writeBulkString(OutputStream out, String value) throws IOException {
+        writeBulkString(out, RespDecoder.toBytes(value));
+    }
+
+    private static void writeBulkString(OutputStream out, byte[] bytes) throws IOException {
+        out.write('$');
+        out.write(Integer.toString(bytes.length).getBytes());
+        out.write(CRLF);
+        out.write(bytes);
+        out.write(CRLF);
+    }
+
     public void handleConfigGetCommand(String[] commandParts, OutputStream out) throws IOException{
-        if(commandParts.length < 2){
+        if(commandParts.length < 3){
             out.write("-ERR wrong number of arguments for 'CONFIG GET' command\r\n".getBytes());
             return;
         }
@@ -182,6 +323,36 @@ class ClientHandler extends Thread {
                 response = String.format("*2\r\n$9\r\ndbfilename\r\n$%d\r\n%s\r\n", dbfilename.length(), dbfilename);
                 out.write(response.getBytes());
                 break;
+            case "save":
+                String savePoints = rdbSaver.savePoints();
+                response = String.format("*2\r\n$4\r\nsave\r\n$%d\r\n%s\r\n", savePoints.length(), savePoints);
+                out.write(response.getBytes());
+                break;
+            case "appendonly":
+                String appendOnly = aof.enabled() ? "yes" : "no";
+                response = String.format("*2\r\n$10\r\nappendonly\r\n$%d\r\n%s\r\n", appendOnly.length(), appendOnly);
+                out.write(response.getBytes());
+                break;
+            case "appendfsync":
+                String appendFsync = aof.fsync().configName;
+                response = String.format("*2\r\n$11\r\nappendfsync\r\n$%d\r\n%s\r\n", appendFsync.length(), appendFsync);
+                out.write(response.getBytes());
+                break;
+            case "client-output-buffer-limit":
+                String limit = "replica " + replication.outputBufferLimit();
+                response = String.format("*2\r\n$26\r\nclient-output-buffer-limit\r\n$%d\r\n%s\r\n", limit.length(), limit);
+                out.write(response.getBytes());
+                break;
+            case "maxmemory":
+                String maxMemory = String.valueOf(keyspace.maxMemory());
+                response = String.format("*2\r\n$9\r\nmaxmemory\r\n$%d\r\n%s\r\n", maxMemory.length(), maxMemory);
+                out.write(response.getBytes());
+                break;
+            case "maxmemory-policy":
+                String policy = keyspace.evictionPolicy().configName;
+                response = String.format("*2\r\n$16\r\nmaxmemory-policy\r\n$%d\r\n%s\r\n", policy.length(), policy);
+                out.write(response.getBytes());
+                break;
             default:
                 out.write("-ERR unknown configuration parameter\r\n".getBytes());
         }
@@ -189,70 +360,74 @@ class ClientHandler extends Thread {
     private void handleInfoCommand(String[] commandParts, OutputStream out) throws IOException {
 
         if (commandParts.length >= 2 && "replication".equalsIgnoreCase(commandParts[1])) {
-            String role = isReplica ? "slave" : "master";
-            String infoResponse = String.format(
-                    "role:%s\r\nmaster_replid:%s\r\nmaster_repl_offset:%d",
-                    role, REPLICATION_ID, REPLICATION_OFFSET
-            );
+            String infoResponse = isReplica
+                    ? String.format("role:slave\r\nmaster_replid:%s\r\nmaster_repl_offset:%d", Main.masterReplid(), Main.replicaOffset())
+                    : replication.info();
             String bulkString = String.format("$%d\r\n%s\r\n", infoResponse.length(), infoResponse);
             out.write(bulkString.getBytes());
+        } else if (commandParts.length >= 2 && "persistence".equalsIgnoreCase(commandParts[1])) {
+            String infoResponse = RdbParser.status.info() + "\r\n" + rdbSaver.info() + "\r\n" + aof.info();
+            out.write(String.format("$%d\r\n%s\r\n", infoResponse.length(), infoResponse).getBytes());
+        } else if (commandParts.length >= 2 && "memory".equalsIgnoreCase(commandParts[1])) {
+            String infoResponse = String.format("used_memory:%d\r\nmaxmemory:%d\r\nmaxmemory_policy:%s\r\nkeys:%d",
+                    keyspace.usedMemory(), keyspace.maxMemory(), keyspace.evictionPolicy().configName, keyspace.size());
+            out.write(String.format("$%d\r\n%s\r\n", infoResponse.length(), infoResponse).getBytes());
         } else {
             out.write("-ERR unsupported INFO section\r\n".getBytes());
         }
     }
 
-    static void handleReplicaAck(long offset){
-        synchronized (waitLock){
-            replicaAcknowledgment.computeIfPresent(offset,(key,value) -> value+1);
-            waitLock.notifyAll();
-        }
-        for(Long key: replicaAcknowledgment.keySet()){
-            System.out.println(key + "->" + replicaAcknowledgment.get(key));
-        }
-    }
-
     private void handleReplConfCommand(String[] commandParts, OutputStream out) throws IOException{
-        if(commandParts[1].equals("listening-port")){
-//            currentOffset++;
-            out.write("+OK\r\n".getBytes());
+        if (commandParts.length < 2) {
+            out.write("-ERR wrong number of arguments for 'REPLCONF' command\r\n".getBytes());
+            return;
+        }
+        if(commandParts[1].equalsIgnoreCase("listening-port")){
+            try {
+                listeningPort = Integer.parseInt(commandParts.length >= 3 ? commandParts[2] : "");
+                out.write("+OK\r\n".getBytes());
+            } catch (NumberFormatException e) {
+                out.write("-ERR value is not an integer or out of range\r\n".getBytes());
+            }
         } else if (commandParts[1].equalsIgnoreCase("capa")) {
-
-            handleReplicaAck(currentOffset);
             out.write("+OK\r\n".getBytes());
         } else if(commandParts[1].equalsIgnoreCase("ACK")){
-            long ackOffset = currentOffset;
-            handleReplicaAck(ackOffset);
-//                out.write("+OK\r\n".getBytes());
+            // No reply: ACKs flow on the replication link
+            if (replicaLink != null && commandParts.length >= 3) {
+                // The first ACK after a full resync means the replica has loaded it, and
+                // only then does it count for WAIT
+                replication.syncAcknowledged(replicaLink);
+                try {
+                    replication.acknowledge(replicaLink, Long.parseLong(commandParts[2]));
+                } catch (NumberFormatException e) {
+                    System.out.println("Invalid REPLCONF ACK offset: " + commandParts[2]);
+                }
+            }
         }
         else {
             out.write("-ERR wrong number of arguments for 'REPLCONF' command\r\n".getBytes());
         }
     }
 
-    private byte[] getEmptyRDBFileContent(){
-        String base64RDB = "UkVESVMwMDEx+glyZWRpcy12ZXIFNy4yLjD6CnJlZGlzLWJpdHPAQPoFY3RpbWXCbQi8ZfoIdXNlZC1tZW3CsMQQAPoIYW9mLWJhc2XAAP/wbjv+wP9aog==";
-        return Base64.getDecoder().decode(base64RDB);
-    }
-
-    private void sendEmptyRDBFile(OutputStream out) throws IOException{
-        byte[] rdbContent = getEmptyRDBFileContent();
-        int length = rdbContent.length;
-        String header = String.format("$%d\r\n", length);
-
-        out.write(header.getBytes());
-        out.write(rdbContent);
-        out.flush();
-    }
-
+    // PSYNC <replid> <offset>: continues from the backlog when it can, else a full resync
     private void handlePsyncCommand(String[] commandParts, OutputStream out) throws IOException{
         if(commandParts.length != 3){
             out.write("-ERR wrong number of arguments for 'PSYNC' command\r\n".getBytes());
             return;
         }
-        String psyncResponse = String.format("+FULLRESYNC %s %d\r\n", REPLICATION_ID, REPLICATION_OFFSET);
-        out.write(psyncResponse.getBytes());
-
-        sendEmptyRDBFile(out);
+        long requestedOffset;
+        try {
+            requestedOffset = Long.parseLong(commandParts[2]);
+        } catch (NumberFormatException e) {
+            requestedOffset = -1;
+        }
+        // Everything from here on goes down the link's stream, behind the earlier replies
+        out.flush();
+        ReplicaLink replica = new ReplicaLink(clientSocket, listeningPort);
+        replicaLink = replica;
+        if (!replication.tryPartialResync(replica, commandParts[1], requestedOffset)) {
+            replication.fullResync(replica);
+        }
     }
     private void handleWaitCommand(String[] commandParts, OutputStream out) throws IOException {
         if (commandParts.length < 3) {
@@ -262,37 +437,14 @@ class ClientHandler extends Thread {
         try {
             // Parse the arguments (numreplicas and timeout)
             int numReplicas = Integer.parseInt(commandParts[1]);
-            int timeout = Integer.parseInt(commandParts[2]);
-
-            long startTime = System.currentTimeMillis();
-            int acknowledged = 0;
-            String ackCommand  = "*3\r\n$8\r\nREPLCONF\r\n$6\r\nGETACK\r\n$1\r\n*\r\n";
-            for(Socket replicaSocket : replicas){
-                try{
-                    OutputStream replicaOut = replicaSocket.getOutputStream();
-                    replicaOut.write(ackCommand.getBytes());
-                    System.out.println("getack send to replica");
-                    replicaOut.flush();
-                }
-                catch (IOException e){
-                    System.out.println("Failed to send commands to replica: "  +e.getMessage());
-                }
-            }
-
-            synchronized (waitLock){
-                while (System.currentTimeMillis() - startTime < timeout && acknowledged < numReplicas){
-                    acknowledged = replicaAcknowledgment.values().stream().mapToInt(Integer::intValue).sum();
-                    for(Long key: replicaAcknowledgment.keySet()){
-                        System.out.println(key + "->" + replicaAcknowledgment.get(key));
-                    }
-                    System.out.println("CurrentOffset: " + currentOffset);
-                    System.out.println("Acknowledged: " + acknowledged);
-                    if(acknowledged < numReplicas){
-                        waitLock.wait(timeout);
-                    }
-                }
+            long timeout = Long.parseLong(commandParts[2]);
+            if (timeout < 0) {
+                out.write("-ERR timeout is negative\r\n".getBytes());
+                return;
             }
 
+            // Replicas that processed this client's writes count; timeout 0 waits for good
+            int acknowledged = replication.waitForReplicas(replOffset, numReplicas, timeout);
             out.write(String.format(":%d\r\n", acknowledged).getBytes());
         } catch (NumberFormatException | InterruptedException e) {
             out.write("-ERR invalid arguments for 'WAIT' command\r\n".getBytes());
@@ -305,372 +457,1082 @@ class ClientHandler extends Thread {
             return;
         }
 
-        String key = commandParts[1];
-        ValueWithExpiry value = KeyValueStore.get(key);
-        if(value != null){
-            out.write("+string\r\n".getBytes());
+        byte[] key = RespDecoder.toBytes(commandParts[1]);
+        out.write(("+" + keyspace.type(key) + "\r\n").getBytes());
+    }
+
+    private void handleXReadCommand(String[] commandParts, OutputStream out) throws IOException, WrongTypeException {
+        long blockTimeout = -1;     // -1: do not block, 0: block forever
+        int count = -1;
+        int streamsIndex = -1;
+        try {
+            for (int i = 1; i < commandParts.length; i++) {
+                String option = commandParts[i];
+                if ("STREAMS".equalsIgnoreCase(option)) {
+                    streamsIndex = i + 1;
+                    break;
+                } else if ("BLOCK".equalsIgnoreCase(option) && i + 1 < commandParts.length) {
+                    blockTimeout = Long.parseLong(commandParts[++i]);
+                } else if ("COUNT".equalsIgnoreCase(option) && i + 1 < commandParts.length) {
+                    count = Integer.parseInt(commandParts[++i]);
+                } else {
+                    out.write("-ERR syntax error\r\n".getBytes());
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            out.write("-ERR value is not an integer or out of range\r\n".getBytes());
+            return;
         }
-        else{
-            if(streams.containsKey(key)){
-                out.write("+stream\r\n".getBytes());
+        int numArgs = streamsIndex < 0 ? 0 : commandParts.length - streamsIndex;
+        if (numArgs == 0 || numArgs % 2 != 0 || blockTimeout < -1) {
+            out.write("-ERR wrong number of arguments for 'XREAD' command\r\n".getBytes());
+            return;
+        }
+
+        int numStreams = numArgs / 2;
+        String[] streamKeys = Arrays.copyOfRange(commandParts, streamsIndex, streamsIndex + numStreams);
+        StreamId[] lastSeen = new StreamId[numStreams];
+        try {
+            for (int i = 0; i < numStreams; i++) {
+                String startId = commandParts[streamsIndex + numStreams + i];
+                if ("$".equals(startId)) {
+                    // Only entries added from now on
+                    Stream stream = keyspace.getStream(RespDecoder.toBytes(streamKeys[i]));
+                    lastSeen[i] = stream == null ? StreamId.MIN : lastIdOf(stream);
+                } else {
+                    lastSeen[i] = StreamId.parse(startId, 0);
+                }
             }
-            else{
-                out.write("+none\r\n".getBytes());
+        } catch (NumberFormatException e) {
+            out.write("-ERR Invalid stream ID specified as stream command argument\r\n".getBytes());
+            return;
+        }
+
+        List<List<StreamEntry>> results;
+        long endTime = blockTimeout > 0 ? System.currentTimeMillis() + blockTimeout : 0;
+        while (true) {
+            StreamWaiter waiter = null;
+            if (blockTimeout >= 0) {
+                // Registered before reading so a racing XADD is not missed; a wakeup means
+                // "read again", which returns everything after lastSeen in order
+                waiter = new StreamWaiter(streamKeys, lastSeen);
+                streamWaiters.register(waiter);
+            }
+            try {
+                results = readStreams(streamKeys, lastSeen, count);
+                if (results != null || waiter == null) break;
+                long waitTime = blockTimeout == 0 ? 0 : endTime - System.currentTimeMillis();
+                if (blockTimeout > 0 && waitTime <= 0) break;
+                if (!waiter.await(waitTime)) break;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results = null;
+                break;
+            } finally {
+                if (waiter != null) {
+                    waiter.cancel();
+                    streamWaiters.unregister(waiter);
+                }
             }
         }
+
+        if (results == null) {
+            out.write("*-1\r\n".getBytes());
+            return;
+        }
+        // Like Redis, only streams that have new entries are part of the reply
+        int nonEmpty = 0;
+        for (List<StreamEntry> entries : results) {
+            if (!entries.isEmpty()) nonEmpty++;
+        }
+        out.write(("*" + nonEmpty + "\r\n").getBytes());
+        for (int i = 0; i < numStreams; i++) {
+            if (results.get(i).isEmpty()) continue;
+            out.write("*2\r\n".getBytes());
+            writeBulkString(out, streamKeys[i]);
+            writeStreamEntries(out, results.get(i));
+        }
     }
 
-    private void handleXReadCommand(String[] commandParts, OutputStream out) throws IOException {
-        boolean isBlocking = false;
-        int blockTimeout = 0;
-        int streamIndex = 1;
+    // Entries after lastSeen for each key, or null if none of the streams has any
+    private static List<List<StreamEntry>> readStreams(String[] streamKeys, StreamId[] lastSeen, int count) throws WrongTypeException {
+        List<List<StreamEntry>> results = new ArrayList<>(streamKeys.length);
+        boolean found = false;
+        for (int i = 0; i < streamKeys.length; i++) {
+            Stream stream = keyspace.getStream(RespDecoder.toBytes(streamKeys[i]));
+            List<StreamEntry> entries = List.of();
+            if (stream != null) {
+                stream.lock.lock();
+                try {
+                    entries = stream.after(lastSeen[i], count);
+                } finally {
+                    stream.lock.unlock();
+                }
+            }
+            results.add(entries);
+            found |= !entries.isEmpty();
+        }
+        return found ? results : null;
+    }
 
-        if("block".equalsIgnoreCase(commandParts[1])){
-            isBlocking = true;
-            blockTimeout = Integer.parseInt(commandParts[2]);
-            streamIndex=3;
+    private static StreamId lastIdOf(Stream stream) {
+        stream.lock.lock();
+        try {
+            return stream.lastId();
+        } finally {
+            stream.lock.unlock();
         }
+    }
 
-        if(!"streams".equals(commandParts[streamIndex])){
-            out.write("-ERR wrong number of arguments for 'XREAD' command\r\n".getBytes());
+    private void handleXRangeCommand(String[] commandParts, OutputStream out) throws IOException, WrongTypeException {
+        if (commandParts.length != 4 && !(commandParts.length == 6 && "COUNT".equalsIgnoreCase(commandParts[4]))) {
+            out.write("-ERR wrong number of arguments for 'XRANGE' command\r\n".getBytes());
+            return;
+        }
+        StreamId start;
+        StreamId end;
+        int count = -1;
+        try {
+            start = "-".equals(commandParts[2]) ? StreamId.MIN : StreamId.parse(commandParts[2], 0);
+            end = "+".equals(commandParts[3]) ? StreamId.MAX : StreamId.parse(commandParts[3], Long.MAX_VALUE);
+            if (commandParts.length == 6) {
+                count = Integer.parseInt(commandParts[5]);
+            }
+        } catch (NumberFormatException e) {
+            out.write("-ERR Invalid stream ID specified as stream command argument\r\n".getBytes());
             return;
         }
 
-        int numStreams = (commandParts.length - streamIndex -1)/2;
-        List<String> streamKeys = new ArrayList<>();
-        List<String> startIds = new ArrayList<>();
+        List<StreamEntry> result = List.of();
+        Stream stream = keyspace.getStream(RespDecoder.toBytes(commandParts[1]));
+        if (stream != null) {
+            stream.lock.lock();
+            try {
+                result = stream.range(start, end, count);
+            } finally {
+                stream.lock.unlock();
+            }
+        }
+        writeStreamEntries(out, result);
+    }
 
-        int idsIndex = streamIndex + 1 + numStreams;
-        for (int i = 0; i < numStreams; i++) {
-            streamKeys.add(commandParts[streamIndex + 1 + i]);
-            startIds.add(commandParts[idsIndex + i]);
+    private static void writeStreamEntries(OutputStream out, List<StreamEntry> entries) throws IOException {
+        out.write(("*" + entries.size() + "\r\n").getBytes());
+        for (StreamEntry entry : entries) {
+            out.write("*2\r\n".getBytes());
+            writeBulkString(out, entry.id.toString());
+            if (entry.fields == null) {
+                out.write("*-1\r\n".getBytes());      // pending entry no longer in the stream
+                continue;
+            }
+            out.write(("*" + entry.fields.length + "\r\n").getBytes());
+            for (byte[] field : entry.fields) {
+                writeBulkString(out, field);
+            }
         }
+    }
 
-        // Replace "$" with latest entry ID if stream is non-empty
-        for (int i = 0; i < numStreams; i++) {
-            String streamKey = streamKeys.get(i);
-            String startId = startIds.get(i);
-            if ("$".equals(startId)) {
-                List<StreamEntry> stream = streams.get(streamKey);
-                if (stream != null && !stream.isEmpty()) {
-                    StreamEntry lastEntry = stream.get(stream.size() - 1);
-                    startIds.set(i, lastEntry.id);
+    // Resolves the ID argument of XADD: "*", "<ms>-*" or an explicit "<ms>-<seq>".
+    // Returns null if the argument is malformed.
+    private static StreamId nextStreamId(String idArg, StreamId last) {
+        try {
+            if ("*".equals(idArg)) {
+                long now = System.currentTimeMillis();
+                return now > last.ms ? new StreamId(now, 0) : new StreamId(last.ms, last.seq + 1);
+            }
+            if (idArg.endsWith("-*")) {
+                long ms = StreamId.parse(idArg.substring(0, idArg.length() - 2), 0).ms;
+                if (ms == last.ms) return new StreamId(ms, last.seq + 1);
+                return new StreamId(ms, ms == 0 ? 1 : 0);
+            }
+            if (idArg.indexOf('-') < 0) return null;
+            return StreamId.parse(idArg, 0);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Returns the error reply for an XADD ID that cannot follow lastId, or null if it is valid
+    private static String checkNewStreamId(StreamId id, StreamId lastId) {
+        if (id == null) {
+            return "-ERR Invalid entry ID format\r\n";
+        }
+        if (id.compareTo(StreamId.MIN) == 0) {
+            return "-ERR The ID specified in XADD must be greater than 0-0\r\n";
+        }
+        if (id.compareTo(lastId) <= 0) {
+            return "-ERR The ID specified in XADD is equal or smaller than the target stream top item\r\n";
+        }
+        return null;
+    }
+
+    // XADD key [NOMKSTREAM] [MAXLEN|MINID [=|~] threshold [LIMIT count]] id field value [field value ...]
+    private void handleXAddCommand(String[] commandParts, OutputStream out) throws IOException, WrongTypeException {
+        boolean noMkStream = false;
+        StreamTrim trim = null;
+        int idIndex = 2;
+        try {
+            while (idIndex < commandParts.length) {
+                String option = commandParts[idIndex];
+                if ("NOMKSTREAM".equalsIgnoreCase(option)) {
+                    noMkStream = true;
+                    idIndex++;
+                } else if ("MAXLEN".equalsIgnoreCase(option) || "MINID".equalsIgnoreCase(option)) {
+                    trim = StreamTrim.parse(commandParts, idIndex);
+                    idIndex = trim.nextIndex;
+                } else {
+                    break;
                 }
-                // else: keep "$" so client will block waiting for first entry
             }
+        } catch (IllegalArgumentException e) {
+            out.write(("-" + e.getMessage() + "\r\n").getBytes());
+            return;
         }
+        int numFields = commandParts.length - idIndex - 1;
+        if (numFields < 2 || numFields % 2 != 0) {
+            out.write("-ERR wrong number of arguments for 'XADD' command\r\n".getBytes());
+            return;
+        }
+        String idArg = commandParts[idIndex];
 
-        StringBuilder response = new StringBuilder();
-        boolean newEntriesFound = false;
-        boolean infiniteBlock = isBlocking && blockTimeout == 0;
-        long endTime = 0;
-        if (isBlocking && !infiniteBlock) {
-            endTime = System.currentTimeMillis() + blockTimeout;
+        byte[] streamKey = RespDecoder.toBytes(commandParts[1]);
+        byte[][] fields = new byte[numFields][];
+        for (int i = 0; i < numFields; i++) {
+            fields[i] = RespDecoder.toBytes(commandParts[idIndex + 1 + i]);
         }
 
-        while (true){
-            response.setLength(0);
-            response.append("*").append(numStreams).append("\r\n");
+        Stream stream = keyspace.getStream(streamKey);
+        if (stream == null) {
+            if (noMkStream) {
+                out.write(NULL_BULK_REPLY);
+                return;
+            }
+            // Do not create the key for an ID that would be rejected anyway
+            String error = checkNewStreamId(nextStreamId(idArg, StreamId.MIN), StreamId.MIN);
+            if (error != null) {
+                out.write(error.getBytes());
+                return;
+            }
+            stream = keyspace.getOrCreateStream(streamKey);
+        }
 
-            synchronized (streams){
-                for(int i=0;i< numStreams;i++){
-                    String streamKey = streamKeys.get(i);
-                    String startId = startIds.get(i);
+        StreamId entryId;
+        stream.lock.lock();
+        try {
+            StreamId lastId = stream.lastId();
+            entryId = nextStreamId(idArg, lastId);
+            String error = checkNewStreamId(entryId, lastId);
+            if (error != null) {
+                out.write(error.getBytes());
+                return;
+            }
+            keyspace.beforeStreamWrite(stream);
+            long memoryBefore = stream.memoryUsage();
+            stream.add(entryId, fields);
+            long trimmed = trim != null ? trim.apply(stream) : 0;
+            keyspace.streamResized(stream.memoryUsage() - memoryBefore);
+
+            // Logged with the ID it got, and any trim as the exact point it reached
+            String[] logged = new String[3 + numFields];
+            logged[0] = "XADD";
+            logged[1] = commandParts[1];
+            logged[2] = entryId.toString();
+            System.arraycopy(commandParts, idIndex + 1, logged, 3, numFields);
+            propagate(logged);
+            if (trimmed > 0) {
+                propagateTrim(commandParts[1], stream);
+            }
+        } finally {
+            stream.lock.unlock();
+        }
+        // Wake only readers blocked on this key, outside the stream lock
+        if (streamWaiters.hasWaiters(commandParts[1])) {
+            streamWaiters.entryAdded(commandParts[1], entryId);
+        }
+        writeBulkString(out, entryId.toString());
+    }
+
+    // XTRIM key MAXLEN|MINID [=|~] threshold [LIMIT count]
+    private void handleXTrimCommand(String[] commandParts, OutputStream out) throws IOException, WrongTypeException {
+        if (commandParts.length < 4) {
+            out.write("-ERR wrong number of arguments for 'XTRIM' command\r\n".getBytes());
+            return;
+        }
+        StreamTrim trim;
+        try {
+            if (!"MAXLEN".equalsIgnoreCase(commandParts[2]) && !"MINID".equalsIgnoreCase(commandParts[2])) {
+                throw new IllegalArgumentException("ERR syntax error");
+            }
+            trim = StreamTrim.parse(commandParts, 2);
+            if (trim.nextIndex != commandParts.length) {
+                throw new IllegalArgumentException("ERR syntax error");
+            }
+        } catch (IllegalArgumentException e) {
+            out.write(("-" + e.getMessage() + "\r\n").getBytes());
+            return;
+        }
+
+        long removed = 0;
+        Stream stream = keyspace.getStream(RespDecoder.toBytes(commandParts[1]));
+        if (stream != null) {
+            stream.lock.lock();
+            try {
+                keyspace.beforeStreamWrite(stream);
+                long memoryBefore = stream.memoryUsage();
+                removed = trim.apply(stream);
+                keyspace.streamResized(stream.memoryUsage() - memoryBefore);
+                if (removed > 0) {
+                    propagateTrim(commandParts[1], stream);
+                }
+            } finally {
+                stream.lock.unlock();
+            }
+        }
+        out.write((":" + removed + "\r\n").getBytes());
+    }
+
+    // An approximate trim stops at block boundaries, so it is logged as an exact MINID at the
+    // first entry it kept, which a replay reproduces whatever its blocks look like.
+    // The caller holds the stream lock.
+    private void propagateTrim(String key, Stream stream) {
+        List<StreamEntry> first = stream.range(StreamId.MIN, StreamId.MAX, 1);
+        if (first.isEmpty()) {
+            propagate("XTRIM", key, "MAXLEN", "0");
+        } else {
+            propagate("XTRIM", key, "MINID", first.get(0).id.toString());
+        }
+    }
+
+    // The consumer of a group, logging its implicit creation as Redis does so a replica or a
+    // replay has it too even if nothing is ever delivered to it. Caller holds the stream lock.
+    private Consumer consumer(ConsumerGroup group, String key, String consumerName, long now) {
+        if (!group.consumers.containsKey(consumerName)) {
+            propagate("XGROUP", "CREATECONSUMER", key, group.name, consumerName);
+        }
+        return group.consumer(consumerName, now);
+    }
+
+    // Logs a pending entry's exact state as Redis does: an XCLAIM that forces it into the PEL
+    // of its consumer with its delivery time and count. Caller holds the stream lock.
+    private void propagateClaim(String key, ConsumerGroup group, PendingEntry pending) {
+        propagate("XCLAIM", key, group.name, pending.consumer.name, "0", pending.id.toString(),
+                "TIME", Long.toString(pending.deliveryTime), "RETRYCOUNT", Long.toString(pending.deliveryCount),
+                "FORCE", "JUSTID", "LASTID", group.lastDelivered.toString());
+    }
 
-                    List<StreamEntry> stream = streams.get(streamKey);
+    private void handleXGroupCommand(String[] commandParts, OutputStream out) throws IOException, WrongTypeException {
+        if (commandParts.length < 4) {
+            out.write("-ERR wrong number of arguments for 'XGROUP' command\r\n".getBytes());
+            return;
+        }
+        String subcommand = commandParts[1].toUpperCase();
+        byte[] streamKey = RespDecoder.toBytes(commandParts[2]);
+        String groupName = commandParts[3];
+
+        Stream stream = keyspace.getStream(streamKey);
+        if (stream == null) {
+            if ("CREATE".equals(subcommand) && commandParts.length == 6 && "MKSTREAM".equalsIgnoreCase(commandParts[5])) {
+                stream = keyspace.getOrCreateStream(streamKey);
+            } else {
+                out.write("-ERR The XGROUP subcommand requires the key to exist. Note that for CREATE you may want to use the MKSTREAM option to create an empty stream automatically.\r\n".getBytes());
+                return;
+            }
+        }
 
-                    response.append("*2\r\n");
-                    response.append("$").append(streamKey.length()).append("\r\n").append(streamKey).append("\r\n");
-                    if(stream == null | stream.isEmpty()){
-                        response.append("*0\r\n");
-                        continue;
+        stream.lock.lock();
+        try {
+            keyspace.beforeStreamWrite(stream);
+            ConsumerGroup group = stream.groups.get(groupName);
+            switch (subcommand) {
+                case "CREATE":
+                case "SETID":
+                    if (commandParts.length < 5) {
+                        out.write("-ERR wrong number of arguments for 'XGROUP' command\r\n".getBytes());
+                        return;
                     }
-                    long startMillis = 0;
-                    long startSeq = 0;
-                    if (!"0-0".equals(startId)) {
-                        String[] startParts = startId.split("-");
-                        startMillis = Long.parseLong(startParts[0]);
-                        startSeq = startParts.length > 1 ? Long.parseLong(startParts[1]) : 0;
+                    StreamId id;
+                    try {
+                        id = "$".equals(commandParts[4]) ? stream.lastId() : StreamId.parse(commandParts[4], 0);
+                    } catch (NumberFormatException e) {
+                        out.write("-ERR Invalid stream ID specified as stream command argument\r\n".getBytes());
+                        return;
                     }
-                    List<StreamEntry> result = new ArrayList<>();
-                    for (StreamEntry entry : stream) {
-                        String[] idParts = entry.id.split("-");
-                        long entryMillis = Long.parseLong(idParts[0]);
-                        long entrySeq = Long.parseLong(idParts[1]);
-
-                        if (entryMillis > startMillis || (entryMillis == startMillis && entrySeq > startSeq)) {
-                            result.add(entry);
+                    if ("CREATE".equals(subcommand)) {
+                        if (group != null) {
+                            out.write("-BUSYGROUP Consumer Group name already exists\r\n".getBytes());
+                            return;
                         }
+                        stream.groups.put(groupName, new ConsumerGroup(groupName, id));
+                        propagate("XGROUP", "CREATE", commandParts[2], groupName, id.toString(), "MKSTREAM");
+                    } else {
+                        if (group == null) {
+                            writeNoGroup(out, commandParts[2], groupName, "XGROUP");
+                            return;
+                        }
+                        group.lastDelivered = id;
+                        propagate("XGROUP", "SETID", commandParts[2], groupName, id.toString());
                     }
+                    out.write(OK_REPLY);
+                    break;
+                case "DESTROY":
+                    boolean destroyed = stream.groups.remove(groupName) != null;
+                    if (destroyed) {
+                        propagate("XGROUP", "DESTROY", commandParts[2], groupName);
+                    }
+                    out.write((destroyed ? ":1\r\n" : ":0\r\n").getBytes());
+                    break;
+                case "CREATECONSUMER":
+                case "DELCONSUMER":
+                    if (commandParts.length < 5) {
+                        out.write("-ERR wrong number of arguments for 'XGROUP' command\r\n".getBytes());
+                        return;
+                    }
+                    if (group == null) {
+                        writeNoGroup(out, commandParts[2], groupName, "XGROUP");
+                        return;
+                    }
+                    String consumerName = commandParts[4];
+                    propagate("XGROUP", subcommand, commandParts[2], groupName, consumerName);
+                    if ("CREATECONSUMER".equals(subcommand)) {
+                        boolean exists = group.consumers.containsKey(consumerName);
+                        group.consumer(consumerName, CachedClock.millis());
+                        out.write((exists ? ":0\r\n" : ":1\r\n").getBytes());
+                    } else {
+                        out.write((":" + group.deleteConsumer(consumerName) + "\r\n").getBytes());
+                    }
+                    break;
+                default:
+                    out.write(("-ERR unknown subcommand '" + commandParts[1] + "'\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            }
+        } finally {
+            stream.lock.unlock();
+        }
+    }
 
-                    if (!result.isEmpty()) {
-                        newEntriesFound = true;
-                        response.append("*").append(result.size()).append("\r\n");
-
-                        for (StreamEntry entry : result) {
-                            response.append("*2\r\n");
-                            response.append("$").append(entry.id.length()).append("\r\n").append(entry.id).append("\r\n");
-                            response.append("*").append(entry.fields.size() * 2).append("\r\n");
-                            for (Map.Entry<String, String> field : entry.fields.entrySet()) {
-                                response.append("$").append(field.getKey().length()).append("\r\n").append(field.getKey()).append("\r\n");
-                                response.append("$").append(field.getValue().length()).append("\r\n").append(field.getValue()).append("\r\n");
-                            }
+    private static void writeNoGroup(OutputStream out, String key, String groupName, String command) throws IOException {
+        out.write(("-NOGROUP No such key '" + key + "' or consumer group '" + groupName + "' in " + command + " with GROUP option\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private void handleXReadGroupCommand(String[] commandParts, OutputStream out) throws IOException, WrongTypeException {
+        if (commandParts.length < 7 || !"GROUP".equalsIgnoreCase(commandParts[1])) {
+            out.write("-ERR wrong number of arguments for 'XREADGROUP' command\r\n".getBytes());
+            return;
+        }
+        String groupName = commandParts[2];
+        String consumerName = commandParts[3];
+        long blockTimeout = -1;
+        int count = -1;
+        boolean noAck = false;
+        int streamsIndex = -1;
+        try {
+            for (int i = 4; i < commandParts.length; i++) {
+                String option = commandParts[i];
+                if ("STREAMS".equalsIgnoreCase(option)) {
+                    streamsIndex = i + 1;
+                    break;
+                } else if ("BLOCK".equalsIgnoreCase(option) && i + 1 < commandParts.length) {
+                    blockTimeout = Long.parseLong(commandParts[++i]);
+                } else if ("COUNT".equalsIgnoreCase(option) && i + 1 < commandParts.length) {
+                    count = Integer.parseInt(commandParts[++i]);
+                } else if ("NOACK".equalsIgnoreCase(option)) {
+                    noAck = true;
+                } else {
+                    out.write("-ERR syntax error\r\n".getBytes());
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            out.write("-ERR value is not an integer or out of range\r\n".getBytes());
+            return;
+        }
+        int numArgs = streamsIndex < 0 ? 0 : commandParts.length - streamsIndex;
+        if (numArgs == 0 || numArgs % 2 != 0 || blockTimeout < -1) {
+            out.write("-ERR wrong number of arguments for 'XREADGROUP' command\r\n".getBytes());
+            return;
+        }
+
+        int numStreams = numArgs / 2;
+        String[] streamKeys = Arrays.copyOfRange(commandParts, streamsIndex, streamsIndex + numStreams);
+        // ">" asks for entries never delivered to the group, any other ID for this consumer's history
+        StreamId[] historyFrom = new StreamId[numStreams];
+        boolean onlyNew = true;
+        try {
+            for (int i = 0; i < numStreams; i++) {
+                String id = commandParts[streamsIndex + numStreams + i];
+                if (!">".equals(id)) {
+                    historyFrom[i] = StreamId.parse(id, 0);
+                    onlyNew = false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            out.write("-ERR Invalid stream ID specified as stream command argument\r\n".getBytes());
+            return;
+        }
+
+        // Blocking only applies to new entries, as in Redis
+        boolean blocking = onlyNew && blockTimeout >= 0;
+        long endTime = blockTimeout > 0 ? System.currentTimeMillis() + blockTimeout : 0;
+        List<List<StreamEntry>> results;
+        while (true) {
+            StreamWaiter waiter = null;
+            if (blocking) {
+                // Registered before reading so a racing XADD is not missed. Other consumers
+                // compete for the same entries, so a wakeup only means "read again".
+                StreamId[] anyNew = new StreamId[numStreams];
+                Arrays.fill(anyNew, StreamId.MIN);
+                waiter = new StreamWaiter(streamKeys, anyNew);
+                streamWaiters.register(waiter);
+            }
+            try {
+                Stream[] streams = new Stream[numStreams];
+                String missing = findGroupStreams(streamKeys, groupName, streams);
+                if (missing != null) {
+                    writeNoGroup(out, missing, groupName, "XREADGROUP");
+                    return;
+                }
+                results = readGroup(streamKeys, streams, groupName, consumerName, historyFrom, count, noAck);
+                if (!blocking || hasEntries(results)) break;
+                long waitTime = blockTimeout == 0 ? 0 : endTime - System.currentTimeMillis();
+                if (blockTimeout > 0 && waitTime <= 0) break;
+                waiter.await(waitTime);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results = null;
+                break;
+            } finally {
+                if (waiter != null) {
+                    waiter.cancel();
+                    streamWaiters.unregister(waiter);
+                }
+            }
+        }
+
+        if (results == null || (onlyNew && !hasEntries(results))) {
+            out.write("*-1\r\n".getBytes());
+            return;
+        }
+        // History reads list every stream; new-entry reads only those that had something
+        int replied = 0;
+        for (int i = 0; i < numStreams; i++) {
+            if (historyFrom[i] != null || !results.get(i).isEmpty()) replied++;
+        }
+        out.write(("*" + replied + "\r\n").getBytes());
+        for (int i = 0; i < numStreams; i++) {
+            if (historyFrom[i] == null && results.get(i).isEmpty()) continue;
+            out.write("*2\r\n".getBytes());
+            writeBulkString(out, streamKeys[i]);
+            writeStreamEntries(out, results.get(i));
+        }
+    }
+
+    private static boolean hasEntries(List<List<StreamEntry>> results) {
+        for (List<StreamEntry> entries : results) {
+            if (!entries.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    // Looks up every stream of an XREADGROUP into streams before anything is delivered, so a
+    // missing stream or group fails the whole command as in Redis. Returns the first key whose
+    // stream or group is missing, or null.
+    private static String findGroupStreams(String[] streamKeys, String groupName, Stream[] streams) throws WrongTypeException {
+        for (int i = 0; i < streamKeys.length; i++) {
+            Stream stream = keyspace.getStream(RespDecoder.toBytes(streamKeys[i]));
+            if (stream == null) return streamKeys[i];
+            stream.lock.lock();
+            try {
+                if (!stream.groups.containsKey(groupName)) return streamKeys[i];
+            } finally {
+                stream.lock.unlock();
+            }
+            streams[i] = stream;
+        }
+        return null;
+    }
+
+    // One XREADGROUP pass over the streams findGroupStreams found. New entries advance the
+    // group's last delivered ID and enter the PEL under the stream lock, so concurrent consumers
+    // never get the same one. A group destroyed since the lookup reads as empty, as if the
+    // XGROUP DESTROY had come after this command.
+    private List<List<StreamEntry>> readGroup(String[] streamKeys, Stream[] streams, String groupName, String consumerName,
+                                              StreamId[] historyFrom, int count, boolean noAck) {
+        List<List<StreamEntry>> results = new ArrayList<>(streamKeys.length);
+        long now = CachedClock.millis();
+        for (int i = 0; i < streamKeys.length; i++) {
+            Stream stream = streams[i];
+            stream.lock.lock();
+            try {
+                ConsumerGroup group = stream.groups.get(groupName);
+                if (group == null) {
+                    results.add(List.of());
+                    continue;
+                }
+                keyspace.beforeStreamWrite(stream);
+                Consumer consumer = consumer(group, streamKeys[i], consumerName, now);
+                if (historyFrom[i] == null) {
+                    List<StreamEntry> entries = stream.after(group.lastDelivered, count);
+                    for (StreamEntry entry : entries) {
+                        group.lastDelivered = entry.id;
+                        if (!noAck) {
+                            group.deliver(entry.id, consumer, now);
+                            propagateClaim(streamKeys[i], group, group.pending.get(entry.id));
+                        }
+                    }
+                    // As Redis does: each delivery as an XCLAIM, then the group's position
+                    if (!entries.isEmpty()) {
+                        propagate("XGROUP", "SETID", streamKeys[i], groupName, group.lastDelivered.toString());
+                    }
+                    results.add(entries);
+                } else {
+                    List<StreamEntry> history = new ArrayList<>();
+                    for (StreamId id : consumer.pending.tailMap(historyFrom[i], false).keySet()) {
+                        if (count >= 0 && history.size() >= count) break;
+                        StreamEntry entry = stream.get(id);
+                        history.add(entry != null ? entry : new StreamEntry(id, null));
+                    }
+                    results.add(history);
+                }
+            } finally {
+                stream.lock.unlock();
+            }
+        }
+        return results;
+    }
+
+    private void handleXAckCommand(String[] commandParts, OutputStream out) throws IOException, WrongTypeException {
+        if (commandParts.length < 4) {
+            out.write("-ERR wrong number of arguments for 'XACK' command\r\n".getBytes());
+            return;
+        }
+        StreamId[] ids = new StreamId[commandParts.length - 3];
+        try {
+            for (int i = 3; i < commandParts.length; i++) {
+                ids[i - 3] = StreamId.parse(commandParts[i], 0);
+            }
+        } catch (NumberFormatException e) {
+            out.write("-ERR Invalid stream ID specified as stream command argument\r\n".getBytes());
+            return;
+        }
+
+        int acknowledged = 0;
+        Stream stream = keyspace.getStream(RespDecoder.toBytes(commandParts[1]));
+        if (stream != null) {
+            stream.lock.lock();
+            try {
+                ConsumerGroup group = stream.groups.get(commandParts[2]);
+                if (group != null) {
+                    keyspace.beforeStreamWrite(stream);
+                    List<String> logged = new ArrayList<>(List.of("XACK", commandParts[1], commandParts[2]));
+                    for (StreamId id : ids) {
+                        if (group.ack(id)) {
+                            acknowledged++;
+                            logged.add(id.toString());
                         }
-                    } else {
-                        response.append("*0\r\n");
+                    }
+                    if (acknowledged > 0) {
+                        propagate(logged.toArray(new String[0]));
                     }
                 }
+            } finally {
+                stream.lock.unlock();
+            }
+        }
+        out.write((":" + acknowledged + "\r\n").getBytes());
+    }
 
-                // New logic for blocking/infinite blocking
-                boolean shouldBreak = false;
-                if (newEntriesFound) {
-                    shouldBreak = true;
-                } else if (!isBlocking) {
-                    shouldBreak = true;
-                } else if (isBlocking && !infiniteBlock && System.currentTimeMillis() >= endTime) {
-                    shouldBreak = true;
+    // XPENDING key group: the summary form
+    // XPENDING key group [IDLE min-idle] start end count [consumer]: the extended form
+    private void handleXPendingCommand(String[] commandParts, OutputStream out) throws IOException, WrongTypeException {
+        if (commandParts.length != 3 && commandParts.length < 6) {
+            out.write("-ERR wrong number of arguments for 'XPENDING' command\r\n".getBytes());
+            return;
+        }
+        long minIdle = 0;
+        StreamId start = null;
+        StreamId end = null;
+        int count = 0;
+        String consumerName = null;
+        if (commandParts.length > 3) {
+            int i = 3;
+            try {
+                if ("IDLE".equalsIgnoreCase(commandParts[i])) {
+                    minIdle = Long.parseLong(commandParts[i + 1]);
+                    i += 2;
                 }
-                if (shouldBreak) {
-                    break;
+                if (commandParts.length - i < 3 || commandParts.length - i > 4) {
+                    out.write("-ERR syntax error\r\n".getBytes());
+                    return;
+                }
+                start = "-".equals(commandParts[i]) ? StreamId.MIN : StreamId.parse(commandParts[i], 0);
+                end = "+".equals(commandParts[i + 1]) ? StreamId.MAX : StreamId.parse(commandParts[i + 1], Long.MAX_VALUE);
+                count = Integer.parseInt(commandParts[i + 2]);
+                if (commandParts.length - i == 4) {
+                    consumerName = commandParts[i + 3];
                 }
+            } catch (NumberFormatException e) {
+                out.write("-ERR Invalid stream ID specified as stream command argument\r\n".getBytes());
+                return;
+            }
+        }
 
-                try {
-                    if (infiniteBlock) {
-                        streams.wait(0); // Wait indefinitely
-                    } else {
-                        long waitTime = Math.max(1, endTime - System.currentTimeMillis());
-                        streams.wait(waitTime);
+        Stream stream = keyspace.getStream(RespDecoder.toBytes(commandParts[1]));
+        if (stream == null) {
+            writeNoGroup(out, commandParts[1], commandParts[2], "XPENDING");
+            return;
+        }
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        stream.lock.lock();
+        try {
+            ConsumerGroup group = stream.groups.get(commandParts[2]);
+            if (group == null) {
+                writeNoGroup(out, commandParts[1], commandParts[2], "XPENDING");
+                return;
+            }
+            if (start == null) {
+                writePendingSummary(reply, group);
+            } else {
+                TreeMap<StreamId, PendingEntry> pel = group.pending;
+                if (consumerName != null) {
+                    Consumer consumer = group.consumers.get(consumerName);
+                    pel = consumer == null ? new TreeMap<>() : consumer.pending;
+                }
+                long now = CachedClock.millis();
+                List<PendingEntry> entries = new ArrayList<>();
+                if (start.compareTo(end) <= 0) {
+                    for (PendingEntry entry : pel.subMap(start, true, end, true).values()) {
+                        if (entries.size() >= count) break;
+                        if (now - entry.deliveryTime >= minIdle) entries.add(entry);
                     }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    out.write("$-1\r\n".getBytes());
-                    return;
+                }
+                reply.write(("*" + entries.size() + "\r\n").getBytes());
+                for (PendingEntry entry : entries) {
+                    reply.write("*4\r\n".getBytes());
+                    writeBulkString(reply, entry.id.toString());
+                    writeBulkString(reply, entry.consumer.name);
+                    reply.write((":" + (now - entry.deliveryTime) + "\r\n:" + entry.deliveryCount + "\r\n").getBytes());
                 }
             }
+        } finally {
+            stream.lock.unlock();
         }
+        reply.writeTo(out);
+    }
 
-        if (newEntriesFound) {
-            out.write(response.toString().getBytes());
-        } else {
-            out.write("*-1\r\n".getBytes());
+    private static void writePendingSummary(OutputStream out, ConsumerGroup group) throws IOException {
+        if (group.pending.isEmpty()) {
+            out.write("*4\r\n:0\r\n$-1\r\n$-1\r\n*-1\r\n".getBytes());
+            return;
+        }
+        out.write(("*4\r\n:" + group.pending.size() + "\r\n").getBytes());
+        writeBulkString(out, group.pending.firstKey().toString());
+        writeBulkString(out, group.pending.lastKey().toString());
+        int withPending = 0;
+        for (Consumer consumer : group.consumers.values()) {
+            if (!consumer.pending.isEmpty()) withPending++;
+        }
+        out.write(("*" + withPending + "\r\n").getBytes());
+        for (Consumer consumer : group.consumers.values()) {
+            if (consumer.pending.isEmpty()) continue;
+            out.write("*2\r\n".getBytes());
+            writeBulkString(out, consumer.name);
+            writeBulkString(out, String.valueOf(consumer.pending.size()));
         }
-        System.out.println("Reached xread!");
     }
 
-
-
-    private void handleXRangeCommand(String[] commandParts, OutputStream out) throws IOException {
-        if(commandParts.length != 4){
-            out.write("-ERR wrong number of arguments for 'XRANGE' command\r\n".getBytes());
+    // XCLAIM key group consumer min-idle-time id [id ...] [IDLE ms] [TIME unix-time-ms]
+    //        [RETRYCOUNT count] [FORCE] [JUSTID] [LASTID id]
+    private void handleXClaimCommand(String[] commandParts, OutputStream out) throws IOException, WrongTypeException {
+        if (commandParts.length < 6) {
+            out.write("-ERR wrong number of arguments for 'XCLAIM' command\r\n".getBytes());
             return;
         }
-        String streamKey = commandParts[1];
-        String startId = commandParts[2];
-        String endId = commandParts[3];
-
-        List<StreamEntry> stream = streams.get(streamKey);
-        if(stream == null || stream.isEmpty()){
-            out.write("*0\r\n".getBytes());
+        long minIdle;
+        long idle = -1;
+        long time = -1;
+        long retryCount = -1;
+        boolean force = false;
+        boolean justId = false;
+        StreamId lastId = null;
+        List<StreamId> ids = new ArrayList<>();
+        try {
+            minIdle = Long.parseLong(commandParts[4]);
+            int i = 5;
+            for (; i < commandParts.length && !XCLAIM_OPTIONS.contains(commandParts[i].toUpperCase()); i++) {
+                ids.add(StreamId.parse(commandParts[i], 0));
+            }
+            for (; i < commandParts.length; i++) {
+                String option = commandParts[i].toUpperCase();
+                boolean hasArg = i + 1 < commandParts.length;
+                if ("FORCE".equals(option)) {
+                    force = true;
+                } else if ("JUSTID".equals(option)) {
+                    justId = true;
+                } else if ("IDLE".equals(option) && hasArg) {
+                    idle = Long.parseLong(commandParts[++i]);
+                } else if ("TIME".equals(option) && hasArg) {
+                    time = Long.parseLong(commandParts[++i]);
+                } else if ("RETRYCOUNT".equals(option) && hasArg) {
+                    retryCount = Long.parseLong(commandParts[++i]);
+                } else if ("LASTID".equals(option) && hasArg) {
+                    lastId = StreamId.parse(commandParts[++i], 0);
+                } else {
+                    out.write("-ERR syntax error\r\n".getBytes());
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            out.write("-ERR Invalid stream ID specified as stream command argument\r\n".getBytes());
             return;
         }
-
-        long startMillis = 0;
-        long startSeq = 0;
-        if (!"-".equals(startId)) {
-            String[] startParts = startId.split("-");
-            startMillis = Long.parseLong(startParts[0]);
-            startSeq = startParts.length > 1 ? Long.parseLong(startParts[1]) : 0;
+        if (ids.isEmpty()) {
+            out.write("-ERR wrong number of arguments for 'XCLAIM' command\r\n".getBytes());
+            return;
         }
 
-        long endMillis = Long.MAX_VALUE;
-        long endSeq = Long.MAX_VALUE;
-        if (!"+".equals(endId)) {
-            String[] endParts = endId.split("-");
-            endMillis = Long.parseLong(endParts[0]);
-            endSeq = endParts.length > 1 ? Long.parseLong(endParts[1]) : Long.MAX_VALUE;
+        Stream stream = keyspace.getStream(RespDecoder.toBytes(commandParts[1]));
+        if (stream == null) {
+            writeNoGroup(out, commandParts[1], commandParts[2], "XCLAIM");
+            return;
         }
-
-        List<StreamEntry> result = new ArrayList<>();
-        for(StreamEntry entry : stream){
-            String[] entryIdParts = entry.id.split("-");
-            long entryMillis = Long.parseLong(entryIdParts[0]);
-            long entrySeq = Long.parseLong(entryIdParts[1]);
-
-            if((entryMillis > startMillis || (entryMillis == startMillis && entrySeq >= startSeq)) &&
-                    (entryMillis < endMillis || (entryMillis == endMillis && entrySeq <= endSeq))){
-                result.add(entry);
+        List<StreamEntry> claimed = new ArrayList<>();
+        stream.lock.lock();
+        try {
+            ConsumerGroup group = stream.groups.get(commandParts[2]);
+            if (group == null) {
+                writeNoGroup(out, commandParts[1], commandParts[2], "XCLAIM");
+                return;
+            }
+            keyspace.beforeStreamWrite(stream);
+            long now = CachedClock.millis();
+            long deliveryTime = time >= 0 ? time : idle >= 0 ? now - idle : now;
+            boolean lastIdMoved = lastId != null && lastId.compareTo(group.lastDelivered) > 0;
+            if (lastIdMoved) {
+                group.lastDelivered = lastId;
+            }
+            Consumer consumer = consumer(group, commandParts[1], commandParts[3], now);
+            List<String> deleted = new ArrayList<>(List.of("XACK", commandParts[1], commandParts[2]));
+            for (StreamId id : ids) {
+                PendingEntry pending = group.pending.get(id);
+                StreamEntry entry = stream.get(id);
+                if (pending == null) {
+                    // FORCE claims an entry of the stream that is not pending yet
+                    if (!force || entry == null) continue;
+                    group.deliver(id, consumer, now);
+                    pending = group.pending.get(id);
+                }
+                if (now - pending.deliveryTime < minIdle) continue;
+                if (entry == null) {
+                    // Deleted from the stream meanwhile: drop it from the PEL, as Redis 7 does
+                    group.ack(id);
+                    deleted.add(id.toString());
+                    continue;
+                }
+                group.transfer(pending, consumer);
+                pending.deliveryTime = deliveryTime;
+                if (retryCount >= 0) {
+                    pending.deliveryCount = retryCount;
+                } else if (!justId) {
+                    pending.deliveryCount++;
+                }
+                claimed.add(entry);
+                propagateClaim(commandParts[1], group, pending);
+            }
+            if (deleted.size() > 3) {
+                propagate(deleted.toArray(new String[0]));
+            }
+            if (lastIdMoved && claimed.isEmpty()) {
+                propagate("XGROUP", "SETID", commandParts[1], group.name, group.lastDelivered.toString());
             }
+        } finally {
+            stream.lock.unlock();
         }
 
-        StringBuilder response = new StringBuilder();
-        response.append("*").append(result.size()).append("\r\n");
-        for(StreamEntry entry : result){
-            response.append("*2\r\n");
-            response.append("$").append(entry.id.length()).append("\r\n").append(entry.id).append("\r\n");
-
-            //key-value pairs
-            response.append("*").append(entry.fields.size()*2).append("\r\n");
-            for(Map.Entry<String, String> field : entry.fields.entrySet()){
-                response.append("$").append(field.getKey().length()).append("\r\n").append(field.getKey()).append("\r\n");
-                response.append("$").append(field.getValue().length()).append("\r\n").append(field.getValue()).append("\r\n");
+        if (justId) {
+            out.write(("*" + claimed.size() + "\r\n").getBytes());
+            for (StreamEntry entry : claimed) {
+                writeBulkString(out, entry.id.toString());
             }
+        } else {
+            writeStreamEntries(out, claimed);
         }
-
-        out.write(response.toString().getBytes());
     }
 
-    private boolean isValidEntryId(String entryId){
-        return entryId.matches("\\d+-\\d+");
+    // Commands that may park the calling thread until another client acts
+    static boolean isBlockingCommand(String[] commandParts) {
+        String command = commandParts[0];
+        if ("WAIT".equalsIgnoreCase(command)) return true;
+        if (!"XREAD".equalsIgnoreCase(command) && !"XREADGROUP".equalsIgnoreCase(command)) return false;
+        for (int i = 1; i < commandParts.length && !"STREAMS".equalsIgnoreCase(commandParts[i]); i++) {
+            if ("BLOCK".equalsIgnoreCase(commandParts[i])) return true;
+        }
+        return false;
     }
 
+    public void processCommand(String[] commandParts, OutputStream out) throws IOException {
+        if(commandParts != null && commandParts.length > 0){
+            try {
+                dispatch(commandParts, out);
+            } catch (WrongTypeException e) {
+                out.write(("-" + e.getMessage() + "\r\n").getBytes());
+            } catch (RuntimeException e) {
+                // A handler bug fails the command, not the thread serving this and other clients
+                System.out.println("Error running " + commandParts[0] + ": " + e);
+                out.write(("-ERR internal error running '" + commandParts[0] + "'\r\n").getBytes());
+            }
+        }
+    }
 
-
-    private void handleXAddCommand(String[] commandParts, OutputStream out) throws IOException {
-        if (commandParts.length < 5 || commandParts.length % 2 == 0) {
-            out.write("-ERR wrong number of arguments for 'XADD' command\r\n".getBytes());
+    private void dispatch(String[] commandParts, OutputStream out) throws IOException, WrongTypeException {
+        String command = commandParts[0].toUpperCase();
+        // Logged and replicated commands were already admitted where they first ran
+        boolean admitted = replaying || fromMaster;
+        if (RdbParser.status.loading && !admitted && !LOADING_COMMANDS.contains(command)) {
+            // A GET hit is safe to serve; a miss may just be a key not loaded yet
+            if (!"GET".equals(command) || !serveLoadedKey(commandParts, out)) {
+                out.write(LOADING_REPLY);
+            }
             return;
         }
-
-        String streamKey = commandParts[1];
-        String entryId = commandParts[2];
-        Map<String, String> fields = new HashMap<>();
-        for (int i = 3; i < commandParts.length; i = i + 2) {
-            fields.put(commandParts[i], commandParts[i + 1]);
+        if (isReplica && !admitted && REPLICA_READONLY_COMMANDS.contains(command)) {
+            out.write(READONLY_REPLY);
+            return;
         }
-
-        synchronized (streams) {
-            streams.putIfAbsent(streamKey, new ArrayList<>());
-            List<StreamEntry> stream = streams.get(streamKey);
-
-            if (entryId.endsWith("*")) {
-                String[] idParts = entryId.split("-");
-                long millisecondsTime = 0;
-                if (idParts.length > 1) {
-                    millisecondsTime = Long.parseLong(idParts[0]);
-                } else {
-                    millisecondsTime = System.currentTimeMillis();
-                }
-                long sequenceNumber = 0;
-
-                if (!stream.isEmpty()) {
-                    StreamEntry lastEntry = stream.get(stream.size() - 1);
-                    String[] lastIdParts = lastEntry.id.split("-");
-                    long lastMillisecondsTime = Long.parseLong(lastIdParts[0]);
-                    long lastSequenceNumber = Long.parseLong(lastIdParts[1]);
-
-                    if (millisecondsTime == lastMillisecondsTime) {
-                        sequenceNumber = lastSequenceNumber + 1;
-                    }
-                }
-
-                if (millisecondsTime == 0 && sequenceNumber < 1) {
-                    sequenceNumber = 1;
+        if (WRITE_COMMANDS.contains(command) && !admitted && !keyspace.makeRoomForWrite()) {
+            out.write(OOM_REPLY);
+            return;
+        }
+        switch (command){
+            case "PING":
+                out.write(PONG_REPLY);
+                break;
+            case "ECHO":
+                if(commandParts.length > 1){
+                    writeBulkString(out, commandParts[1]);
                 }
-
-                entryId = millisecondsTime + "-" + sequenceNumber;
-
-            } else if (!isValidEntryId(entryId)) {
-                out.write("-ERR Invalid entry ID format\r\n".getBytes());
-                return;
-            }
-
-            String[] idParts = entryId.split("-");
-            long millisecondsTime = Long.parseLong(idParts[0]);
-            long sequenceNumber = Long.parseLong(idParts[1]);
-
-            if (millisecondsTime == 0 && sequenceNumber < 1) {
-                out.write("-ERR The ID specified in XADD must be greater than 0-0\r\n".getBytes());
-                return;
-            }
-
-            if (!stream.isEmpty()) {
-                StreamEntry lastEntry = stream.get(stream.size() - 1);
-                String[] lastIdParts = lastEntry.id.split("-");
-                long lastMilliSecondsTime = Long.parseLong(lastIdParts[0]);
-                long lastSequenceNumber = Long.parseLong(lastIdParts[1]);
-
-                if (millisecondsTime < lastMilliSecondsTime || millisecondsTime == lastMilliSecondsTime && sequenceNumber <= lastSequenceNumber) {
-                    out.write("-ERR The ID specified in XADD is equal or smaller than the target stream top item\r\n".getBytes());
-                    return;
+                break;
+            case "SET":
+                handleSetCommand(commandParts,out);
+                break;
+            case "GET":
+                handleGetCommand(commandParts, out);
+                break;
+            case "DEL":
+                handleDelCommand(commandParts, out);
+                break;
+            case "CONFIG":
+                handleConfigGetCommand(commandParts,out);
+                break;
+            case "KEYS":
+                handleKeysCommand(commandParts, out);
+                break;
+            case "SCAN":
+                handleScanCommand(commandParts, out);
+                break;
+            case "INFO":
+                handleInfoCommand(commandParts,out);
+                break;
+            case "REPLCONF":
+                handleReplConfCommand(commandParts,out);
+                break;
+            case "WAIT":
+                handleWaitCommand(commandParts, out);
+                break;
+            case "PSYNC":
+                handlePsyncCommand(commandParts,out);
+                break;
+            case "SAVE":
+                String error = rdbSaver.save();
+                out.write(error == null ? OK_REPLY : ("-" + error + "\r\n").getBytes());
+                break;
+            case "BGSAVE":
+                out.write(rdbSaver.backgroundSave()
+                        ? "+Background saving started\r\n".getBytes()
+                        : "-ERR Background save already in progress\r\n".getBytes());
+                break;
+            case "LASTSAVE":
+                out.write((":" + rdbSaver.lastSaveTime() / 1000 + "\r\n").getBytes());
+                break;
+            case "BGREWRITEAOF":
+                if (!aof.enabled()) {
+                    out.write("-ERR Background append only file rewriting needs appendonly yes\r\n".getBytes());
+                } else {
+                    out.write(aof.backgroundRewrite()
+                            ? "+Background append only file rewriting started\r\n".getBytes()
+                            : "-ERR Background append only file rewriting already in progress\r\n".getBytes());
                 }
-            }
-
-            stream.add(new StreamEntry(entryId, fields));
-            streams.notifyAll();
+                break;
+            case "TYPE":
+                handleTypeCommand(commandParts,out);
+                break;
+            case "XADD":
+                handleXAddCommand(commandParts,out);
+                break;
+            case "XTRIM":
+                handleXTrimCommand(commandParts, out);
+                break;
+            case "XRANGE":
+                handleXRangeCommand(commandParts,out);
+                break;
+            case "XREAD":
+                handleXReadCommand(commandParts,out);
+                break;
+            case "XGROUP":
+                handleXGroupCommand(commandParts, out);
+                break;
+            case "XREADGROUP":
+                handleXReadGroupCommand(commandParts, out);
+                break;
+            case "XACK":
+                handleXAckCommand(commandParts, out);
+                break;
+            case "XPENDING":
+                handleXPendingCommand(commandParts, out);
+                break;
+            case "XCLAIM":
+                handleXClaimCommand(commandParts, out);
+                break;
+            default:
+                out.write("-ERR unknown command\r\n".getBytes());
         }
-        out.write(String.format("$%d\r\n%s\r\n", entryId.length(), entryId).getBytes());
-        System.out.println("Reached!");
     }
 
     @Override
     public void run() {
-        boolean isReplicaConnection = false;
         try (
-                BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                OutputStream out = clientSocket.getOutputStream()
+                InputStream in = clientSocket.getInputStream();
+                // Replies accumulate here and go out in one write per batch of pipelined commands.
+                // Every flush, also one a command makes mid-reply, first waits for the fsync.
+                OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream(), 64 * 1024) {
+                    @Override
+                    public void flush() throws IOException {
+                        awaitAppendOnlyFile();
+                        super.flush();
+                    }
+                }
         ) {
-            while (true) {
-                String inputLine = reader.readLine();
-                if (inputLine == null) break;
-
-                if(inputLine.startsWith("*")){
-                    String[] commandParts = parseRespCommand(reader, inputLine);
-                    if(commandParts != null && commandParts.length > 0){
-                        String command = commandParts[0].toUpperCase();
-                        switch (command){
-                            case "PING":
-                                out.write("+PONG\r\n".getBytes());
-                                break;
-                            case "ECHO":
-                                if(commandParts.length > 1){
-                                    String message = commandParts[1];
-                                    out.write(String.format("$%d\r\n%s\r\n", message.length(), message).getBytes());
-                                }
-                                break;
-                            case "SET":
-                                handleSetCommand(commandParts,out);
-                                ACKFlag=true;
-                                break;
-                            case "GET":
-                                handleGetCommand(commandParts, out);
-                                break;
-                            case "CONFIG":
-                                handleConfigGetCommand(commandParts,out);
-                                break;
-                            case "KEYS":
-                                handleKeysCommand(commandParts, out);
-                                break;
-                            case "INFO":
-                                handleInfoCommand(commandParts,out);
-                                break;
-                            case "REPLCONF":
-                                handleReplConfCommand(commandParts,out);
-                                break;
-                            case "WAIT":
-                                handleWaitCommand(commandParts, out);
-                                break;
-                            case "PSYNC":
-                                isReplicaConnection = true;
-                                replicas.add(clientSocket);         //add replica socket
-                                handlePsyncCommand(commandParts,out);
-                                break;
-                            case "TYPE":
-                                handleTypeCommand(commandParts,out);
-                                break;
-                            case "XADD":
-                                handleXAddCommand(commandParts,out);
-                                break;
-                            case "XRANGE":
-                                handleXRangeCommand(commandParts,out);
-                                break;
-                            case "XREAD":
-                                handleXReadCommand(commandParts,out);
-                                break;
-                            default:
-                                out.write("-ERR unknown command\r\n".getBytes());
+            RespDecoder decoder = new RespDecoder(16 * 1024);
+            if(initialInput != null){
+                decoder.feed(initialInput, 0, initialInput.length);
+            }
+            try {
+                while (true) {
+                    byte[][] command;
+                    while ((command = decoder.next()) != null) {
+                        String[] commandParts = RespDecoder.toStrings(command);
+                        if (isBlockingCommand(commandParts)) {
+                            out.flush();    // earlier replies must not wait behind a blocked command
                         }
+                        processCommand(commandParts, out);
                     }
+                    // One fsync wait covers the whole pipelined batch
+                    out.flush();
+                    if (decoder.readFrom(in) < 0) break;
                 }
+            } catch (ProtocolException e) {
+                out.write(("-ERR " + e.getMessage() + "\r\n").getBytes());
+                out.flush();
             }
         } catch (IOException e) {
             System.out.println("IOException in client handler: " + e.getMessage());
@@ -682,8 +1544,8 @@ class ClientHandler extends Thread {
                 catch (IOException e){
                     System.out.println("IOException when closing client socket: " + e.getMessage());
                 }
-                if(isReplicaConnection){
-                    replicas.remove(clientSocket);      //remove replicas from list
+                if(replicaLink != null){
+                    replication.drop(replicaLink);
                 }
             }
         }
@@ -692,7 +1554,13 @@ class ClientHandler extends Thread {
 
 public class Main {
 
-    private static long offset = 0;
+    // The replica's replication state: the master's replication ID and the offset of the last
+    // byte of its stream processed here. Kept across reconnects for PSYNC.
+    private static volatile String masterReplid;
+    private static volatile long offset = 0;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    // A replica reports its offset this often on its own, as Redis's replicationCron does
+    private static final int ACK_INTERVAL_MILLIS = 1000;
 
     public static void main(String[] args) {
         int port = 6379;  // Default port
@@ -701,9 +1569,10 @@ public class Main {
         String masterHost="";
         int masterPort=-1;
         boolean isReplica=false;
-        synchronized (ClientHandler.waitLock){
-            ClientHandler.replicaAcknowledgment.put(ClientHandler.currentOffset,0);
-        }
+        String ioMode = "thread";         // thread | virtual | eventloop | threaded
+        int eventLoops = Runtime.getRuntime().availableProcessors();
+        boolean asyncLoading = false;
+        String appendFilename = "appendonly.aof";
 
         // Parse the command line arguments
         for (int i = 0; i < args.length; i++) {
@@ -745,21 +1614,137 @@ public class Main {
                         }
                     }
                     break;
+                case "--io-mode":
+                    if (i + 1 < args.length) {
+                        ioMode = args[i + 1].toLowerCase();
+                    }
+                    break;
+                case "--maxmemory":
+                    if (i + 1 < args.length) {
+                        try {
+                            ClientHandler.keyspace.setMaxMemory(parseMemorySize(args[i + 1]));
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid maxmemory value. Memory stays unlimited.");
+                        }
+                    }
+                    break;
+                case "--maxmemory-policy":
+                    if (i + 1 < args.length) {
+                        EvictionPolicy policy = EvictionPolicy.fromConfigName(args[i + 1]);
+                        if (policy != null) {
+                            ClientHandler.keyspace.setEvictionPolicy(policy);
+                        } else {
+                            System.out.println("Unknown maxmemory-policy. Using noeviction.");
+                        }
+                    }
+                    break;
+                case "--save":
+                    if (i + 1 < args.length) {
+                        try {
+                            ClientHandler.rdbSaver.setSavePoints(args[i + 1]);
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Invalid save parameters. Using " + ClientHandler.rdbSaver.savePoints() + ".");
+                        }
+                    }
+                    break;
+                case "--appendonly":
+                    if (i + 1 < args.length) {
+                        ClientHandler.aof.setEnabled("yes".equalsIgnoreCase(args[i + 1]));
+                    }
+                    break;
+                case "--appendfilename":
+                    if (i + 1 < args.length) {
+                        appendFilename = args[i + 1];
+                    }
+                    break;
+                case "--appendfsync":
+                    if (i + 1 < args.length) {
+                        AppendFsync fsync = AppendFsync.fromConfigName(args[i + 1]);
+                        if (fsync != null) {
+                            ClientHandler.aof.setFsync(fsync);
+                        } else {
+                            System.out.println("Unknown appendfsync. Using everysec.");
+                        }
+                    }
+                    break;
+                case "--repl-backlog-size":
+                    if (i + 1 < args.length) {
+                        try {
+                            ClientHandler.replication.setBacklogSize((int) Math.min(Integer.MAX_VALUE, parseMemorySize(args[i + 1])));
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid repl-backlog-size. Using " + Replication.DEFAULT_BACKLOG_SIZE + " bytes.");
+                        }
+                    }
+                    break;
+                case "--client-output-buffer-limit":
+                    // "replica <hard> <soft> <soft seconds>"; replicas are the only class with a limit here
+                    if (i + 1 < args.length) {
+                        String[] limit = args[i + 1].trim().split("\\s+", 2);
+                        try {
+                            if (limit.length < 2 || !(limit[0].equalsIgnoreCase("replica") || limit[0].equalsIgnoreCase("slave"))) {
+                                throw new IllegalArgumentException("Unsupported client class");
+                            }
+                            ClientHandler.replication.setOutputBufferLimit(OutputBufferLimit.parse(limit[1]));
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Invalid client-output-buffer-limit. Using replica " + OutputBufferLimit.DEFAULT_REPLICA + ".");
+                        }
+                    }
+                    break;
+                case "--async-loading":
+                    if (i + 1 < args.length) {
+                        asyncLoading = "yes".equalsIgnoreCase(args[i + 1]);
+                    }
+                    break;
+                case "--event-loops":
+                    if (i + 1 < args.length) {
+                        try {
+                            eventLoops = Math.max(1, Integer.parseInt(args[i + 1]));
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid event loop count. Using " + eventLoops + ".");
+                        }
+                    }
+                    break;
             }
         }
 
-        // Load the RDB file
-        RdbParser.loadRDB(dir, dbfilename);
-
         ClientHandler.setDir(dir);
         ClientHandler.setDbfilename(dbfilename);
         ClientHandler.setIsReplica(isReplica);
+        ClientHandler.rdbSaver.setFile(dir, dbfilename);
+        ClientHandler.aof.setFile(dir, appendFilename);
 
+        // Replication starts only once the local data set is in place
+        Runnable afterLoad = () -> {};
         if(isReplica && masterHost != null && masterPort > 0){
             final String finalMasterHost = masterHost;
             final int finalMasterPort = masterPort;
             int finalReplicaPort = port;
-            new Thread(() -> connectToMaster(finalMasterHost, finalMasterPort, finalReplicaPort)).start();
+            afterLoad = () -> new Thread(() -> followMaster(finalMasterHost, finalMasterPort, finalReplicaPort), "replication").start();
+        }
+
+        // Load the data set. In async mode the listener opens right away and clients get
+        // -LOADING (or a GET hit on a key already loaded) until the load finishes.
+        final String finalDir = dir;
+        final String finalDbfilename = dbfilename;
+        Runnable load = () -> loadDataSet(finalDir, finalDbfilename);
+        if (asyncLoading) {
+            RdbParser.loadAsync(load, afterLoad);
+        } else {
+            load.run();
+            afterLoad.run();
+        }
+        ClientHandler.keyspace.startActiveExpiry();
+        ClientHandler.rdbSaver.startSavePolicy();
+
+        // threaded: the event loops only do the socket I/O and parsing, one thread runs commands
+        // other than the blocking ones
+        if("eventloop".equals(ioMode) || "threaded".equals(ioMode)){
+            try {
+                new EventLoopServer(port, eventLoops, "threaded".equals(ioMode)).start();
+            } catch (IOException e) {
+                System.out.println("IOException: " + e.getMessage());
+            }
+            return;
         }
 
         try (ServerSocket serverSocket = new ServerSocket(port)) {
@@ -773,18 +1758,97 @@ public class Main {
 
                 // Create a new thread to handle the client
                 ClientHandler clientHandler = new ClientHandler(clientSocket);
-                clientHandler.start();  // Start the thread for this client
+                if("virtual".equals(ioMode)){
+                    Thread.ofVirtual().name("client").start(clientHandler);
+                }
+                else{
+                    new Thread(clientHandler).start();  // Start the thread for this client
+                }
             }
         } catch (IOException e) {
             System.out.println("IOException: " + e.getMessage());
         }
     }
 
+    // With appendonly on, the AOF is the more complete copy and is loaded instead of the RDB,
+    // as Redis does. Logging starts once the data set is in place.
+    private static void loadDataSet(String dir, String dbfilename) {
+        AppendOnlyFile aof = ClientHandler.aof;
+        if (!aof.enabled()) {
+            RdbParser.loadRDB(dir, dbfilename);
+        } else {
+            loadAppendOnlyFile(aof, dir, dbfilename);
+        }
+        ClientHandler.keyspace.setRemovalListener(ClientHandler::propagateRemoval);
+    }
+
+    private static void loadAppendOnlyFile(AppendOnlyFile aof, String dir, String dbfilename) {
+        if (aof.exists()) {
+            long start = System.nanoTime();
+            try {
+                long commands = aof.load(ClientHandler.replayer());
+                ClientHandler.keyspace.clearDirty(ClientHandler.keyspace.dirty());
+                System.out.println("Replayed " + commands + " commands from the AOF in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            } catch (IOException e) {
+                // As for a corrupt RDB: appending to a file that cannot be replayed loses data
+                System.out.println("Error loading the AOF: " + e.getMessage() + ". Aborting now.");
+                System.exit(1);
+            }
+        } else {
+            RdbParser.loadRDB(dir, dbfilename);
+        }
+        try {
+            aof.start();
+        } catch (IOException e) {
+            System.out.println("Error opening the AOF: " + e.getMessage());
+        }
+    }
+
+    // Accepts plain bytes or a kb/mb/gb suffix, like redis.conf
+    static long parseMemorySize(String value) {
+        String lower = value.trim().toLowerCase();
+        long multiplier = 1;
+        if (lower.endsWith("kb")) {
+            multiplier = 1024;
+        } else if (lower.endsWith("mb")) {
+            multiplier = 1024 * 1024;
+        } else if (lower.endsWith("gb")) {
+            multiplier = 1024L * 1024 * 1024;
+        }
+        if (multiplier > 1) {
+            lower = lower.substring(0, lower.length() - 2);
+        }
+        return Long.parseLong(lower) * multiplier;
+    }
+
+    static String masterReplid() {
+        return masterReplid;
+    }
+
+    static long replicaOffset() {
+        return offset;
+    }
+
+    // Reconnects whenever the link drops; the PSYNC of a reconnect asks to continue from the
+    // last processed offset, so a short outage costs only the missed bytes
+    private static void followMaster(String masterHost, int masterPort, int replicaPort) {
+        while (true) {
+            connectToMaster(masterHost, masterPort, replicaPort);
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            System.out.println("Reconnecting to master at " + masterHost + ":" + masterPort);
+        }
+    }
+
     public static void connectToMaster(String masterHost, int masterPort, int replicaPort) {
         try (Socket masterSocket = new Socket(masterHost, masterPort);
              OutputStream out = masterSocket.getOutputStream();
-             InputStream in = masterSocket.getInputStream();
-             BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {  // Use BufferedReader to read lines
+             InputStream in = masterSocket.getInputStream()) {
+            masterSocket.setTcpNoDelay(true);     // ACKs are tiny and WAIT is waiting for them
+            RespDecoder decoder = new RespDecoder(16 * 1024);
 
             System.out.println("Connected to master at " + masterHost + ":" + masterPort);
 
@@ -794,7 +1858,7 @@ public class Main {
             out.flush();
             System.out.println("Sent PING to master");
 
-            String pingResponse = reader.readLine();  // Use BufferedReader to read the response line
+            String pingResponse = readLine(decoder, in);
             if (!"+PONG".equals(pingResponse)) {
                 System.out.println("Unexpected response to PING: " + pingResponse);
                 return;
@@ -806,7 +1870,7 @@ public class Main {
             out.flush();
             System.out.println("Sent REPLCONF listening-port to master");
 
-            String replConfListeningPortResponse = reader.readLine();
+            String replConfListeningPortResponse = readLine(decoder, in);
             if (!"+OK".equals(replConfListeningPortResponse)) {
                 System.out.println("Unexpected response to REPLCONF listening-port: " + replConfListeningPortResponse);
                 return;
@@ -818,66 +1882,125 @@ public class Main {
             out.flush();
             System.out.println("Sent REPLCONF capa psync2 to master");
 
-            String replConfCapaResponse = reader.readLine();
+            String replConfCapaResponse = readLine(decoder, in);
             if (!"+OK".equals(replConfCapaResponse)) {
                 System.out.println("Unexpected response to REPLCONF capa psync2: " + replConfCapaResponse);
                 return;
             }
 
-            // Step 4: Send PSYNC command
-            String psyncCommand = "*3\r\n$5\r\nPSYNC\r\n$1\r\n?\r\n$2\r\n-1\r\n";
-            out.write(psyncCommand.getBytes());
+            // Step 4: Send PSYNC, asking to continue after the last byte processed
+            String replid = masterReplid != null ? masterReplid : "?";
+            String psyncOffset = masterReplid != null ? Long.toString(offset + 1) : "-1";
+            out.write(RespDecoder.encode("PSYNC", replid, psyncOffset));
             out.flush();
-            System.out.println("Sent PSYNC ? -1 to master");
-
-            // Read the FULLRESYNC response
-            String psyncResponse = reader.readLine();
-            if (psyncResponse != null && psyncResponse.startsWith("+FULLRESYNC")) {
+            System.out.println("Sent PSYNC " + replid + " " + psyncOffset + " to master");
+
+            String psyncResponse = readLine(decoder, in);
+            if (psyncResponse != null && psyncResponse.startsWith("+CONTINUE")) {
+                // The master may have a new ID after a failover, psync2 style
+                String[] parts = psyncResponse.split(" ");
+                if (parts.length >= 2) {
+                    masterReplid = parts[1];
+                }
+                System.out.println("Partial resynchronization with master, continuing from offset " + offset);
+            } else if (psyncResponse != null && psyncResponse.startsWith("+FULLRESYNC")) {
                 System.out.println("Received FULLRESYNC from master: " + psyncResponse);
-                System.out.println("Finished skipping RDB file.");
+                String[] parts = psyncResponse.split(" ");
+                masterReplid = null;    // the old data set is gone from here on
+                loadFromMaster(decoder, in);
+                masterReplid = parts[1];
+                offset = Long.parseLong(parts[2]);
+                // Tells the master the load is done, so it sends what it buffered meanwhile
+                out.write(RespDecoder.encode("REPLCONF", "ACK", Long.toString(offset)));
+                out.flush();
             } else {
                 System.out.println("Unexpected response to PSYNC: " + psyncResponse);
                 return;
             }
-            String readVal = reader.readLine();
-            int length = Integer.parseInt(readVal.substring(1));
-            long skipval = reader.skip(length-1);
-            if(skipval != length){
-                System.out.println("Unable to skip " + length + " chars");
-            }
-            else{
-                System.out.println("Values Skipped " + skipval);
-            }
-            System.out.println("read: " + readVal);
+
+            // Replicated commands go through the same dispatcher as clients, their replies
+            // discarded. Whatever one read brings in is applied as a batch and the offset
+            // published once per batch; it counts every byte of the stream, applied or not,
+            // so it matches the master's.
+            ClientHandler applier = ClientHandler.masterClient();
+            OutputStream replies = OutputStream.nullOutputStream();
+            long applied = offset;
+            long streamPosition = decoder.consumed();
+            long lastAck = System.currentTimeMillis();
+            // Wakes an idle link so the periodic ACK still goes out
+            masterSocket.setSoTimeout(ACK_INTERVAL_MILLIS);
             while (true){
-                String inputLine = reader.readLine();
-                if(inputLine==null) break;
-
-                if(inputLine.startsWith("*")){
-                    String[] commandParts = parseMasterRespCommand(reader, inputLine);
-                    if(commandParts != null && commandParts.length > 0){
-                        String command = commandParts[0].toUpperCase();
-
-                        switch (command){
-                            case "PING":
-                                int commandSize = calculateCommandSize(commandParts);
-                                offset += commandSize;
-                                break;
-                            case "REPLCONF":
-                                handleReplicaReplconfCommand(out, commandParts);
-                                break;
-                            case "SET":
-                                processSetCommands(commandParts);
-                                break;
-                            default:
-                                System.out.println("-ERR unknown command\r\n");
-                        }
+                byte[][] rawCommand;
+                while ((rawCommand = decoder.next()) != null) {
+                    String[] commandParts = RespDecoder.toStrings(rawCommand);
+                    if ("REPLCONF".equalsIgnoreCase(commandParts[0])) {
+                        // GETACK reports the offset before itself, as Redis does
+                        offset = applied;
+                        handleReplicaReplconfCommand(out, commandParts);
+                    } else {
+                        applier.processCommand(commandParts, replies);
                     }
+                    applied += decoder.consumed() - streamPosition;
+                    streamPosition = decoder.consumed();
+                }
+                offset = applied;
+                long now = System.currentTimeMillis();
+                if (now - lastAck >= ACK_INTERVAL_MILLIS) {
+                    out.write(RespDecoder.encode("REPLCONF", "ACK", Long.toString(offset)));
+                    out.flush();
+                    lastAck = now;
+                }
+                try {
+                    if (decoder.readFrom(in) < 0) break;
+                } catch (SocketTimeoutException e) {
+                    // nothing from the master for a while: loop round to the ACK
                 }
             }
 
         } catch (IOException e) {
             System.out.println("IOException when connecting to master: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // Where the data set stands is unknown, so the next attempt asks for a full resync
+            System.out.println("Error in the replication link: " + e);
+            masterReplid = null;
+        }
+    }
+
+    // Replaces the data set with the master's RDB: streamed with an EOF mark (diskless), or
+    // as a "$<length>" bulk from masters that send a file. Clients get -LOADING meanwhile.
+    private static void loadFromMaster(RespDecoder decoder, InputStream in) throws IOException {
+        String header = readLine(decoder, in);
+        if (header == null) throw new EOFException("Connection lost before the full resync");
+        InputStream rdb;
+        if (header.startsWith("$EOF:")) {
+            byte[] mark = header.substring(5).getBytes(StandardCharsets.ISO_8859_1);
+            rdb = new EofMarkedInputStream(decoder.takeBuffered(), in, mark);
+        } else if (header.startsWith("$")) {
+            int length = Integer.parseInt(header.substring(1));
+            byte[] buffered = decoder.takeBuffered();
+            byte[] payload = Arrays.copyOf(buffered, length);
+            if (buffered.length > length) {
+                decoder.feed(buffered, length, buffered.length - length);
+            } else if (in.readNBytes(payload, buffered.length, length - buffered.length) < length - buffered.length) {
+                throw new EOFException("Connection lost during the full resync");
+            }
+            rdb = new ByteArrayInputStream(payload);
+        } else {
+            throw new IOException("Unexpected full resync payload: " + header);
+        }
+
+        long start = System.nanoTime();
+        RdbParser.status.begin(0);
+        try {
+            ClientHandler.keyspace.clear();
+            long keys = RdbParser.load(rdb, ClientHandler.keyspace);
+            System.out.println("Loaded " + keys + " keys from master in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException | RuntimeException e) {
+            // A transfer that failed its checksum or broke off must not be served
+            ClientHandler.keyspace.clear();
+            throw e;
+        } finally {
+            RdbParser.status.finish();
         }
     }
 
@@ -885,14 +2008,9 @@ public class Main {
         if (commandParts.length >= 2) {
             String subCommand = commandParts[1].toUpperCase();
             if ("GETACK".equals(subCommand)) {
-                System.out.println("GETACK check");
 //                ClientHandler.handleReplicaAck(ClientHandler.currentOffset);
                 String response = String.format("*3\r\n$8\r\nREPLCONF\r\n$3\r\nACK\r\n$%d\r\n%d\r\n", String.valueOf(offset).length(), offset);
-                System.out.println("Sent REPLCONF ACK " + offset + " to master");
                 out.write(response.getBytes());
-                // Calculate the size of the SET command in bytes
-                int commandSize = calculateCommandSize(commandParts);
-                offset += commandSize; // Update the offset
             } else {
                 System.out.println("Unknown REPLCONF subcommand: " + subCommand);
             }
@@ -901,57 +2019,12 @@ public class Main {
         }
     }
 
-    private static void processSetCommands(String[] commandParts) throws IOException {
-        if (commandParts.length < 3) {
-            System.out.println("-ERR wrong number of arguments for 'SET' command\r\n".getBytes());
-            return;
-        }
-
-        // Calculate the size of the SET command in bytes
-        int commandSize = calculateCommandSize(commandParts);
-        offset += commandSize; // Update the offset
-
-        String key = commandParts[1];
-        String value = commandParts[2];
-        long expiryTime = -1;
-
-        if (commandParts.length >= 5 && commandParts[3].equalsIgnoreCase("PX")) {
-            try {
-                long expiryInMilliseconds = Long.parseLong(commandParts[4]);
-                expiryTime = System.currentTimeMillis() + expiryInMilliseconds;
-            } catch (NumberFormatException e) {
-                System.out.println("-ERR invalid PX argument\r\n".getBytes());
-                return;
-            }
-        }
-
-        //Check this later
-        ClientHandler.KeyValueStore.put(key, new ValueWithExpiry(value, expiryTime));
-    }
-
-    private static String[] parseMasterRespCommand(BufferedReader reader, String firstLine) throws IOException {
-        int numElements = Integer.parseInt(firstLine.substring(1));
-        String[] commandParts = new String[numElements];
-
-        for (int i = 0; i < numElements; i++) {
-            String lengthLine = reader.readLine();
-            if (lengthLine.startsWith("$")) {
-                String bulkString = reader.readLine();
-                commandParts[i] = bulkString;
-            }
-        }
-
-        System.out.println("Replica: Parsed RESP Command: " + String.join(", ", commandParts));
-        return commandParts;
-    }
-
-    private static int calculateCommandSize(String[] commandParts) {
-        int size = 0;
-        size += ("*" + commandParts.length + "\r\n").length();
-        for (String part : commandParts) {
-            size += ("$" + part.length() + "\r\n").length();
-            size += (part + "\r\n").length();
+    // Blocks until the master's next line-based reply (e.g. +PONG) arrives
+    private static String readLine(RespDecoder decoder, InputStream in) throws IOException {
+        String line;
+        while ((line = decoder.nextLine()) == null) {
+            if (decoder.readFrom(in) < 0) return null;
         }
-        return size;
+        return line;
     }
 }
@@ -0,0 +1,40 @@
+// client-output-buffer-limit replica <hard> <soft> <soft seconds>: a replica is disconnected
+// as soon as its output buffer passes the hard limit, or once it has stayed over the soft
+// limit for the given seconds. 0 disables a limit. Redis's default is 256mb 64mb 60.
+class OutputBufferLimit {
+    static final OutputBufferLimit DEFAULT_REPLICA = new OutputBufferLimit(256L << 20, 64L << 20, 60);
+
+    final long hardBytes;
+    final long softBytes;
+    final long softSeconds;
+
+    OutputBufferLimit(long hardBytes, long softBytes, long softSeconds) {
+        this.hardBytes = hardBytes;
+        this.softBytes = softBytes;
+        this.softSeconds = softSeconds;
+    }
+
+    // "<hard> <soft> <soft seconds>", sizes with an optional kb/mb/gb suffix
+    static OutputBufferLimit parse(String config) {
+        String[] parts = config.trim().split("\\s+");
+        if (parts.length != 3) throw new IllegalArgumentException("Invalid client output buffer limit");
+        OutputBufferLimit limit = new OutputBufferLimit(Main.parseMemorySize(parts[0]), Main.parseMemorySize(parts[1]),
+                Long.parseLong(parts[2]));
+        if (limit.hardBytes < 0 || limit.softBytes < 0 || limit.softSeconds < 0) {
+            throw new IllegalArgumentException("Invalid client output buffer limit");
+        }
+        return limit;
+    }
+
+    // Caller holds the replica's lock
+    boolean allows(long bufferedBytes, ReplicaLink replica) {
+        if (hardBytes > 0 && bufferedBytes > hardBytes) return false;
+        long since = replica.overSoftLimitSince(softBytes > 0 && bufferedBytes > softBytes);
+        return since == 0 || System.currentTimeMillis() - since <= softSeconds * 1000;
+    }
+
+    @Override
+    public String toString() {
+        return hardBytes + " " + softBytes + " " + softSeconds;
+    }
+}
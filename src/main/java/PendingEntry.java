@@ -0,0 +1,14 @@
+// An entry delivered to a consumer of a group and not acknowledged yet
+class PendingEntry {
+    final StreamId id;
+    Consumer consumer;
+    long deliveryTime;
+    long deliveryCount;
+
+    PendingEntry(StreamId id, Consumer consumer, long deliveryTime) {
+        this.id = id;
+        this.consumer = consumer;
+        this.deliveryTime = deliveryTime;
+        this.deliveryCount = 1;
+    }
+}
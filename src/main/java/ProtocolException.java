@@ -0,0 +1,11 @@
+import java.io.IOException;
+
+// Input that is not valid RESP or breaks a protocol limit. The client gets it as an error
+// reply and is disconnected, as Redis does, since the rest of its input cannot be framed.
+class ProtocolException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    ProtocolException(String message) {
+        super(message);
+    }
+}
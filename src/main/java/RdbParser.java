@@ -1,9 +1,86 @@
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Loads an RDB snapshot into the keyspace. Decodes every length and string encoding, both
+// expiry opcodes and the stream types, and verifies the CRC64 trailer. Value types this
+// server has no representation for (lists, sets, hashes, sorted sets) are decoded far
+// enough to be skipped.
+// The load is pipelined: the calling thread only decodes, and hands batches of entries to
+// a pool of workers that build the stripe tables. Each worker owns a fixed subset of the
+// stripes, so inserts never contend on a stripe lock and every key lands in a table that
+// was presized from the resize-db hint.
 public class RdbParser {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int BATCH_SIZE = 1024;
+    private static final int LOAD_THREADS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 8));
+    // Batches a worker may have queued before the decoder waits for it
+    private static final int QUEUE_DEPTH = 4;
+    private static final List<DictEntry> END_OF_LOAD = new ArrayList<>();
+    // How often, in records, the decoder publishes its progress
+    private static final int PROGRESS_INTERVAL = 1024;
+
+    static final LoadingStatus status = new LoadingStatus();
+
+    private static final int OPCODE_FUNCTION2 = 0xF5;
+    private static final int OPCODE_MODULE_AUX = 0xF7;
+    private static final int OPCODE_IDLE = 0xF8;
+    private static final int OPCODE_FREQ = 0xF9;
+    static final int OPCODE_AUX = 0xFA;
+    static final int OPCODE_RESIZEDB = 0xFB;
+    static final int OPCODE_EXPIRETIME_MS = 0xFC;
+    private static final int OPCODE_EXPIRETIME = 0xFD;
+    static final int OPCODE_SELECTDB = 0xFE;
+    static final int OPCODE_EOF = 0xFF;
+
+    static final int TYPE_STRING = 0;
+    private static final int TYPE_LIST = 1;
+    private static final int TYPE_SET = 2;
+    private static final int TYPE_ZSET = 3;
+    private static final int TYPE_HASH = 4;
+    private static final int TYPE_ZSET_2 = 5;
+    private static final int TYPE_HASH_ZIPMAP = 9;
+    private static final int TYPE_LIST_ZIPLIST = 10;
+    private static final int TYPE_SET_INTSET = 11;
+    private static final int TYPE_ZSET_ZIPLIST = 12;
+    private static final int TYPE_HASH_ZIPLIST = 13;
+    private static final int TYPE_LIST_QUICKLIST = 14;
+    static final int TYPE_STREAM_LISTPACKS = 15;
+    private static final int TYPE_HASH_LISTPACK = 16;
+    private static final int TYPE_ZSET_LISTPACK = 17;
+    private static final int TYPE_LIST_QUICKLIST_2 = 18;
+    private static final int TYPE_STREAM_LISTPACKS_2 = 19;
+    private static final int TYPE_SET_LISTPACK = 20;
+    private static final int TYPE_STREAM_LISTPACKS_3 = 21;
+
+    // Flags of a stream entry inside a listpack node
+    private static final int STREAM_ITEM_FLAG_DELETED = 1;
+    private static final int STREAM_ITEM_FLAG_SAMEFIELDS = 2;
+
+    private final RdbReader reader;
+    private final Keyspace keyspace;
+    private final List<BlockingQueue<List<DictEntry>>> queues = new ArrayList<>();
+    private final List<List<DictEntry>> batches = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicLong keysLoaded = new AtomicLong();
+    private volatile Throwable workerFailure;
+    private long keysSkipped;
+
+    private RdbParser(RdbReader reader, Keyspace keyspace) {
+        this.reader = reader;
+        this.keyspace = keyspace;
+    }
+
     public static void loadRDB(String dir, String dbfFilename) {
         File rdbFile = new File(dir, dbfFilename);
         if (!rdbFile.exists()) {
@@ -11,101 +88,514 @@ public class RdbParser {
             return;
         }
 
-        try (FileInputStream fis = new FileInputStream(rdbFile)) {
-            byte[] header = new byte[8];
-            int bytesRead = fis.read(header);
-            if (bytesRead != header.length) {
-                System.out.println("Error: Could not read the full header.");
-                return;
+        long start = System.nanoTime();
+        status.begin(rdbFile.length());
+        try (InputStream in = new FileInputStream(rdbFile)) {
+            long keys = load(in, ClientHandler.keyspace);
+            // The data set now matches the file, so nothing is unsaved
+            ClientHandler.keyspace.clearDirty(ClientHandler.keyspace.dirty());
+            System.out.println("Loaded " + keys + " keys from " + rdbFile + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            // Keys go into the keyspace as they are read, so a bad checksum or a damaged file
+            // is only known once part of it is live. Like Redis, refuse to run on it.
+            System.out.println("Error loading RDB file: " + e.getMessage() + ". Aborting now.");
+            System.exit(1);
+        } finally {
+            status.finish();
+        }
+    }
+
+    // Runs load (an RDB or AOF load) on a background thread so the server can accept
+    // connections meanwhile, then runs afterLoad. The status flips to loading before this
+    // returns, so no client ever sees the half loaded keyspace as if it were complete. It
+    // flips back however the load ends, including when there is nothing to load.
+    static void loadAsync(Runnable load, Runnable afterLoad) {
+        status.async = true;
+        status.loading = true;
+        new Thread(() -> {
+            try {
+                load.run();
+            } finally {
+                status.finish();
             }
-            System.out.println("RDB header: " + new String(header));
-
-            int ignore = fis.read();
-            while (fis.available() > 0) {
-                int marker = fis.read();
-                System.out.println("marker: " + marker);
-                switch (marker) {
-                    case 0xFA:  // Metadata Section
-                        parseMetadataSection(fis);
-                        break;
-                    case 0xFE:  // Database Section
-                        parseDatabaseSection(fis);
-                        break;
-                    case 0xFF:  // End of File
-                        System.out.println("End of RDB file");
-                        ignore = fis.read();
-                        byte[] checksum = new byte[8];
-                        int checkSumRead = fis.read(checksum,0,checksum.length);
-                        System.out.println("Checksum: " + ByteBuffer.wrap(checksum).getLong());
-                        break;
-                    default:
-                        System.out.println("Unknown marker encountered: " + marker);
-                        return;
+            afterLoad.run();
+        }, "rdb-loader").start();
+    }
+
+    // Decodes a complete RDB from in; returns the number of keys loaded
+    static long load(InputStream in, Keyspace keyspace) throws IOException {
+        return decode(in, keyspace).keysLoaded.get();
+    }
+
+    // Decodes the RDB at the start of an AOF; returns its length in bytes, where the logged
+    // commands begin
+    static long loadPreamble(InputStream in, Keyspace keyspace) throws IOException {
+        return decode(in, keyspace).reader.bytesConsumed();
+    }
+
+    private static RdbParser decode(InputStream in, Keyspace keyspace) throws IOException {
+        RdbParser parser = new RdbParser(new RdbReader(in, BUFFER_SIZE), keyspace);
+        parser.startWorkers();
+        try {
+            parser.parse();
+        } finally {
+            parser.stopWorkers();
+        }
+        if (parser.workerFailure != null) {
+            throw new IOException("RDB load failed: " + parser.workerFailure, parser.workerFailure);
+        }
+        return parser;
+    }
+
+    private void startWorkers() {
+        for (int i = 0; i < LOAD_THREADS; i++) {
+            BlockingQueue<List<DictEntry>> queue = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+            queues.add(queue);
+            batches.add(new ArrayList<>(BATCH_SIZE));
+            Thread worker = new Thread(() -> runWorker(queue), "rdb-load-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    // After a failure the worker keeps draining its queue so the decoder never blocks on it
+    private void runWorker(BlockingQueue<List<DictEntry>> queue) {
+        try {
+            List<DictEntry> batch;
+            while ((batch = queue.take()) != END_OF_LOAD) {
+                if (workerFailure != null) continue;
+                try {
+                    keyspace.insertBatch(batch);
+                    keysLoaded.addAndGet(batch.size());
+                } catch (RuntimeException | Error e) {
+                    workerFailure = e;
                 }
             }
-        } catch (Exception e) {
-            System.out.println("Error loading RDB file: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void stopWorkers() throws IOException {
+        try {
+            for (BlockingQueue<List<DictEntry>> queue : queues) {
+                queue.put(END_OF_LOAD);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading the RDB");
         }
     }
 
-    private static void parseMetadataSection(FileInputStream fis) throws Exception {
-        String attributeName = readString(fis);
-        if(attributeName.equals("redis-bits")){
-            int ignore = fis.read();
-            int attributeValue = fis.read();
-            System.out.println("Metadata: " + attributeName + " = " + attributeValue);
+    private void parse() throws IOException {
+        String magic = new String(reader.readBytes(9), StandardCharsets.ISO_8859_1);
+        if (!magic.startsWith("REDIS")) {
+            throw new IOException("Not an RDB file");
         }
-        else{
-            String attributeValue = readString(fis);
-            System.out.println("Metadata: " + attributeName + " = " + attributeValue);
+        int version;
+        try {
+            version = Integer.parseInt(magic.substring(5));
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad RDB version " + magic.substring(5));
+        }
+
+        long expiryTime = -1;
+        long now = CachedClock.millis();
+        long records = 0;
+        while (true) {
+            if (++records % PROGRESS_INTERVAL == 0) {
+                status.loadedBytes = reader.bytesConsumed();
+            }
+            int type = reader.readByte();
+            switch (type) {
+                case OPCODE_EXPIRETIME_MS:
+                    expiryTime = reader.readLongLE();
+                    break;
+                case OPCODE_EXPIRETIME:
+                    expiryTime = Integer.toUnsignedLong(reader.readIntLE()) * 1000;
+                    break;
+                case OPCODE_FREQ:
+                    reader.readByte();
+                    break;
+                case OPCODE_IDLE:
+                    reader.readLength();
+                    break;
+                case OPCODE_AUX:
+                    reader.skipString();
+                    reader.skipString();
+                    break;
+                case OPCODE_RESIZEDB:
+                    keyspace.presize(reader.readLength());
+                    reader.readLength();     // keys with an expiry
+                    break;
+                case OPCODE_SELECTDB:
+                    reader.readLength();
+                    break;
+                case OPCODE_FUNCTION2:
+                    reader.skipString();
+                    break;
+                case OPCODE_MODULE_AUX:
+                    throw new IOException("Module data is not supported");
+                case OPCODE_EOF:
+                    for (int i = 0; i < batches.size(); i++) {
+                        flushBatch(i);
+                    }
+                    verifyChecksum(version);
+                    if (keysSkipped > 0) {
+                        System.out.println("Skipped " + keysSkipped + " keys of unsupported types");
+                    }
+                    return;
+                default:
+                    byte[] key = reader.readString();
+                    Object value = readValue(type);
+                    // Like a master, drop keys that expired while the server was down
+                    if (value != null && (expiryTime <= 0 || expiryTime > now)) {
+                        int hash = DictEntry.hash(key);
+                        int worker = Keyspace.stripeIndex(hash) % batches.size();
+                        List<DictEntry> batch = batches.get(worker);
+                        batch.add(new DictEntry(key, hash, value, expiryTime));
+                        status.loadedKeys++;
+                        if (batch.size() == BATCH_SIZE) {
+                            flushBatch(worker);
+                        }
+                    }
+                    expiryTime = -1;
+            }
         }
     }
 
-    private static void parseDatabaseSection(FileInputStream fis) throws Exception {
-        int dbIndex = fis.read();
-        System.out.println("Database Index: " + dbIndex);
+    private void verifyChecksum(int version) throws IOException {
+        if (version < 5) return;    // no trailer before RDB 5
+        long computed = reader.crc();
+        long stored = reader.readLongLE();
+        // 0 means the writer had rdbchecksum off
+        if (stored != 0 && stored != computed) {
+            throw new IOException("RDB checksum mismatch");
+        }
+    }
 
-        int hashTableSize = decodeSize(fis);
-        System.out.println("Hash table size: " + hashTableSize);
+    private void flushBatch(int worker) throws IOException {
+        List<DictEntry> batch = batches.get(worker);
+        if (batch.isEmpty()) return;
+        try {
+            queues.get(worker).put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading the RDB");
+        }
+        batches.set(worker, new ArrayList<>(BATCH_SIZE));
+    }
 
-        int encryptedKeys = fis.read();
+    // Returns byte[] for a string, Stream for a stream, or null for a type that was skipped
+    private Object readValue(int type) throws IOException {
+        switch (type) {
+            case TYPE_STRING:
+                return reader.readString();
+            case TYPE_STREAM_LISTPACKS:
+            case TYPE_STREAM_LISTPACKS_2:
+            case TYPE_STREAM_LISTPACKS_3:
+                return readStream(type);
+            default:
+                skipValue(type);
+                keysSkipped++;
+                return null;
+        }
+    }
 
-        for (int i = 0; i < hashTableSize; i++) {
-            int expiryTime=-1;
-            int check;
-            if((check = fis.read()) == 0xFC) {       //if it has expiry
-                byte[] expiryTimeBytes = new byte[8];
-                expiryTime = fis.read(expiryTimeBytes);
-                expiryTime = ByteBuffer.wrap(expiryTimeBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
-                int keyType = fis.read();
+    private void skipValue(int type) throws IOException {
+        long length;
+        switch (type) {
+            case TYPE_LIST:
+            case TYPE_SET:
+            case TYPE_LIST_QUICKLIST:
+                length = reader.readLength();
+                for (long i = 0; i < length; i++) {
+                    reader.skipString();
+                }
+                break;
+            case TYPE_HASH:
+                length = reader.readLength();
+                for (long i = 0; i < 2 * length; i++) {
+                    reader.skipString();
+                }
+                break;
+            case TYPE_ZSET:
+                length = reader.readLength();
+                for (long i = 0; i < length; i++) {
+                    reader.skipString();
+                    int scoreLength = reader.readByte();
+                    if (scoreLength < 253) {        // 253-255 encode nan and +/-inf
+                        reader.skip(scoreLength);
+                    }
+                }
+                break;
+            case TYPE_ZSET_2:
+                length = reader.readLength();
+                for (long i = 0; i < length; i++) {
+                    reader.skipString();
+                    reader.skip(8);
+                }
+                break;
+            case TYPE_LIST_QUICKLIST_2:
+                length = reader.readLength();
+                for (long i = 0; i < length; i++) {
+                    reader.readLength();     // container type
+                    reader.skipString();
+                }
+                break;
+            case TYPE_HASH_ZIPMAP:
+            case TYPE_LIST_ZIPLIST:
+            case TYPE_SET_INTSET:
+            case TYPE_ZSET_ZIPLIST:
+            case TYPE_HASH_ZIPLIST:
+            case TYPE_HASH_LISTPACK:
+            case TYPE_ZSET_LISTPACK:
+            case TYPE_SET_LISTPACK:
+                reader.skipString();        // a single serialized blob
+                break;
+            default:
+                throw new IOException("Unsupported RDB value type " + type);
+        }
+    }
+
+    // Streams are a radix tree of listpack nodes keyed by their master ID, followed by the
+    // stream metadata and the consumer groups with their PELs
+    private Stream readStream(int type) throws IOException {
+        Stream stream = new Stream();
+        long nodes = reader.readLength();
+        for (long n = 0; n < nodes; n++) {
+            ByteBuffer nodeKey = ByteBuffer.wrap(reader.readString());
+            long masterMs = nodeKey.getLong();
+            long masterSeq = nodeKey.getLong();
+            Listpack lp = new Listpack(reader.readString());
+
+            lp.nextLong();      // live entries
+            lp.nextLong();      // deleted entries
+            byte[][] masterFields = new byte[(int) lp.nextLong()][];
+            for (int i = 0; i < masterFields.length; i++) {
+                masterFields[i] = lp.nextBytes();
+            }
+            lp.nextLong();      // end of the master entry
+
+            while (lp.hasNext()) {
+                int flags = (int) lp.nextLong();
+                StreamId id = new StreamId(masterMs + lp.nextLong(), masterSeq + lp.nextLong());
+                byte[][] fields;
+                if ((flags & STREAM_ITEM_FLAG_SAMEFIELDS) != 0) {
+                    fields = new byte[masterFields.length * 2][];
+                    for (int i = 0; i < masterFields.length; i++) {
+                        fields[2 * i] = masterFields[i];
+                        fields[2 * i + 1] = lp.nextBytes();
+                    }
+                } else {
+                    fields = new byte[(int) lp.nextLong() * 2][];
+                    for (int i = 0; i < fields.length; i++) {
+                        fields[i] = lp.nextBytes();
+                    }
+                }
+                lp.nextLong();      // element count, for walking the listpack backwards
+                if ((flags & STREAM_ITEM_FLAG_DELETED) == 0) {
+                    stream.add(id, fields);
+                }
+            }
+        }
+
+        reader.readLength();        // length, implied by the entries
+        stream.restoreLastId(new StreamId(reader.readLength(), reader.readLength()));
+        if (type >= TYPE_STREAM_LISTPACKS_2) {
+            for (int i = 0; i < 5; i++) {
+                reader.readLength();    // first ID, max deleted ID, entries added
+            }
+        }
+
+        long groups = reader.readLength();
+        for (long g = 0; g < groups; g++) {
+            String name = new String(reader.readString(), StandardCharsets.ISO_8859_1);
+            ConsumerGroup group = new ConsumerGroup(name, new StreamId(reader.readLength(), reader.readLength()));
+            if (type >= TYPE_STREAM_LISTPACKS_2) {
+                reader.readLength();    // entries read
+            }
+            long pelSize = reader.readLength();
+            for (long i = 0; i < pelSize; i++) {
+                StreamId id = readRawStreamId();
+                PendingEntry entry = new PendingEntry(id, null, reader.readLongLE());
+                entry.deliveryCount = reader.readLength();
+                group.pending.put(id, entry);
+            }
+            long consumers = reader.readLength();
+            for (long c = 0; c < consumers; c++) {
+                String consumerName = new String(reader.readString(), StandardCharsets.ISO_8859_1);
+                Consumer consumer = new Consumer(consumerName, reader.readLongLE());
+                if (type >= TYPE_STREAM_LISTPACKS_3) {
+                    reader.readLongLE();    // active time
+                }
+                long consumerPel = reader.readLength();
+                for (long i = 0; i < consumerPel; i++) {
+                    StreamId id = readRawStreamId();
+                    PendingEntry entry = group.pending.get(id);
+                    if (entry == null) throw new IOException("Consumer PEL entry missing from the group PEL");
+                    entry.consumer = consumer;
+                    consumer.pending.put(id, entry);
+                }
+                group.consumers.put(consumerName, consumer);
+            }
+            stream.groups.put(name, group);
+        }
+        return stream;
+    }
+
+    private StreamId readRawStreamId() throws IOException {
+        return new StreamId(reader.readLongBE(), reader.readLongBE());
+    }
+
+    // Forward reader over a serialized listpack: a 6 byte header, then elements that are
+    // either integers or strings, each followed by its own length encoded backwards
+    private static final class Listpack {
+        private final byte[] lp;
+        private int pos = 6;
+        private boolean isInt;
+        private long intValue;
+        private int strStart;
+        private int strLength;
+
+        Listpack(byte[] lp) {
+            this.lp = lp;
+        }
+
+        boolean hasNext() throws IOException {
+            if (pos >= lp.length) throw new IOException("Corrupt listpack");
+            return (lp[pos] & 0xFF) != 0xFF;
+        }
+
+        long nextLong() throws IOException {
+            next();
+            if (isInt) return intValue;
+            try {
+                return Long.parseLong(new String(lp, strStart, strLength, StandardCharsets.ISO_8859_1));
+            } catch (NumberFormatException e) {
+                throw new IOException("Expected an integer in listpack");
+            }
+        }
+
+        byte[] nextBytes() throws IOException {
+            next();
+            if (isInt) return Long.toString(intValue).getBytes(StandardCharsets.ISO_8859_1);
+            return Arrays.copyOfRange(lp, strStart, strStart + strLength);
+        }
+
+        private void next() throws IOException {
+            try {
+                int b = lp[pos] & 0xFF;
+                int length;
+                isInt = true;
+                if ((b & 0x80) == 0) {                  // 7 bit unsigned int
+                    intValue = b;
+                    length = 1;
+                } else if ((b & 0xC0) == 0x80) {        // string up to 63 bytes
+                    setString(pos + 1, b & 0x3F);
+                    length = 1 + strLength;
+                } else if ((b & 0xE0) == 0xC0) {        // 13 bit signed int
+                    int value = ((b & 0x1F) << 8) | (lp[pos + 1] & 0xFF);
+                    intValue = value >= 1 << 12 ? value - (1 << 13) : value;
+                    length = 2;
+                } else if ((b & 0xF0) == 0xE0) {        // string up to 4095 bytes
+                    setString(pos + 2, ((b & 0x0F) << 8) | (lp[pos + 1] & 0xFF));
+                    length = 2 + strLength;
+                } else {
+                    switch (b) {
+                        case 0xF0:
+                            setString(pos + 5, (int) littleEndian(pos + 1, 4));
+                            length = 5 + strLength;
+                            break;
+                        case 0xF1:
+                            intValue = (short) littleEndian(pos + 1, 2);
+                            length = 3;
+                            break;
+                        case 0xF2:
+                            intValue = (littleEndian(pos + 1, 3) << 40) >> 40;
+                            length = 4;
+                            break;
+                        case 0xF3:
+                            intValue = (int) littleEndian(pos + 1, 4);
+                            length = 5;
+                            break;
+                        case 0xF4:
+                            intValue = littleEndian(pos + 1, 8);
+                            length = 9;
+                            break;
+                        default:
+                            throw new IOException("Corrupt listpack encoding 0x" + Integer.toHexString(b));
+                    }
+                }
+                pos += length + backlenSize(length);
+                if (pos > lp.length) throw new IOException("Corrupt listpack");
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Corrupt listpack");
             }
-            String key = readString(fis);
-            String value = readString(fis);
+        }
+
+        private void setString(int start, int length) {
+            isInt = false;
+            strStart = start;
+            strLength = length;
+        }
 
-            System.out.println("Parsed key-value: " + key + " -> " + value);
-            ClientHandler.KeyValueStore.put(key, new ValueWithExpiry(value, expiryTime));
+        private long littleEndian(int from, int bytes) {
+            long value = 0;
+            for (int i = bytes - 1; i >= 0; i--) {
+                value = (value << 8) | (lp[from + i] & 0xFF);
+            }
+            return value;
         }
+
+        private static int backlenSize(int length) {
+            if (length <= 127) return 1;
+            if (length < 16383) return 2;
+            if (length < 2097151) return 3;
+            if (length < 268435455) return 4;
+            return 5;
+        }
+    }
+}
+
+// Progress of the RDB load, for INFO persistence and for rejecting commands with -LOADING
+// while it runs. Written by the loading thread only.
+class LoadingStatus {
+    volatile boolean loading;
+    volatile boolean async;         // clients are being served while the load runs
+    volatile long startTime;
+    volatile long totalBytes;
+    volatile long loadedBytes;
+    volatile long loadedKeys;
+
+    void begin(long totalBytes) {
+        this.startTime = System.currentTimeMillis();
+        this.totalBytes = totalBytes;
+        this.loadedBytes = 0;
+        this.loadedKeys = 0;
+        this.loading = true;
     }
 
-    private static String readString(FileInputStream fis) throws Exception {
-        int size = fis.read();
-        byte[] stringBuffer = new byte[size];
-         int stringBytes = fis.read(stringBuffer);
-        return new String(stringBuffer);
+    void finish() {
+        loadedBytes = totalBytes;
+        loading = false;
+        async = false;
     }
 
-    private static int decodeSize(FileInputStream fis) throws Exception {
-        int sizeInfo = fis.read();
-        int firstByte = fis.read();
-        int size = firstByte & 0x3F;
-        if ((firstByte & 0xC0) == 0x40) {
-            int secondByte = fis.read();
-            size = (size << 8) | secondByte;
-        } else if ((firstByte & 0xC0) == 0x80) {
-            byte[] sizeBuffer = new byte[4];
-            int sizeBytes = fis.read(sizeBuffer);
-            size = ByteBuffer.wrap(sizeBuffer).order(ByteOrder.BIG_ENDIAN).getInt();
+    // The loading fields of INFO persistence, named as in Redis
+    String info() {
+        if (!loading) {
+            return "loading:0\r\nasync_loading:0";
         }
-        return size;
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        long loaded = loadedBytes;
+        double percent = totalBytes > 0 ? 100.0 * loaded / totalBytes : 0;
+        long eta = loaded > 0 ? (totalBytes - loaded) * elapsed / loaded / 1000 : 1;
+        return String.format("loading:1\r\nasync_loading:%d\r\nloading_start_time:%d\r\nloading_total_bytes:%d\r\n"
+                        + "loading_loaded_bytes:%d\r\nloading_loaded_perc:%.2f\r\nloading_loaded_keys:%d\r\nloading_eta_seconds:%d",
+                async ? 1 : 0, startTime / 1000, totalBytes, loaded, percent, loadedKeys, eta);
     }
 }
@@ -0,0 +1,226 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+// Buffered decoder for the primitive encodings of the RDB format: lengths, strings (raw,
+// integer and LZF compressed) and little endian numbers. Reads the source in large chunks,
+// so it works the same on a file or a replication socket, and keeps a running CRC64 of every
+// byte consumed so the trailer can be verified without a second pass.
+class RdbReader {
+    // Special string encodings, signalled by a length byte of the form 11xxxxxx
+    private static final int ENC_INT8 = 0;
+    private static final int ENC_INT16 = 1;
+    private static final int ENC_INT32 = 2;
+    private static final int ENC_LZF = 3;
+
+    private final InputStream in;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    private int crcPos;         // bytes of buf before this index are already in crc
+    private long crc;
+    private long consumedBefore;    // bytes consumed in earlier buffer fills
+    private boolean encoded;    // set by readLengthOrEncoding when it returned an encoding type
+
+    RdbReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+    }
+
+    long bytesConsumed() {
+        return consumedBefore + pos;
+    }
+
+    // CRC64 of everything consumed so far
+    long crc() {
+        crc = Crc64.update(crc, buf, crcPos, pos - crcPos);
+        crcPos = pos;
+        return crc;
+    }
+
+    int readByte() throws IOException {
+        if (pos == limit) fill();
+        return buf[pos++] & 0xFF;
+    }
+
+    void readFully(byte[] dst, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (pos == limit) fill();
+            int n = Math.min(length, limit - pos);
+            System.arraycopy(buf, pos, dst, offset, n);
+            pos += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        readFully(bytes, 0, length);
+        return bytes;
+    }
+
+    void skip(long length) throws IOException {
+        while (length > 0) {
+            if (pos == limit) fill();
+            int n = (int) Math.min(length, limit - pos);
+            pos += n;
+            length -= n;
+        }
+    }
+
+    long readLongLE() throws IOException {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value |= (long) readByte() << (8 * i);
+        }
+        return value;
+    }
+
+    int readIntLE() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value |= readByte() << (8 * i);
+        }
+        return value;
+    }
+
+    long readLongBE() throws IOException {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | readByte();
+        }
+        return value;
+    }
+
+    // A plain length; string encodings are an error here
+    long readLength() throws IOException {
+        long length = readLengthOrEncoding();
+        if (encoded) throw new IOException("Unexpected string encoding " + length + " where a length was expected");
+        return length;
+    }
+
+    int readIntLength() throws IOException {
+        long length = readLength();
+        if (length > Integer.MAX_VALUE) throw new IOException("Length too large: " + length);
+        return (int) length;
+    }
+
+    // 00xxxxxx: 6 bit length, 01xxxxxx xxxxxxxx: 14 bit, 0x80: 32 bit big endian,
+    // 0x81: 64 bit big endian, 11xxxxxx: a special string encoding (sets encoded)
+    private long readLengthOrEncoding() throws IOException {
+        int first = readByte();
+        encoded = false;
+        switch (first >>> 6) {
+            case 0:
+                return first & 0x3F;
+            case 1:
+                return ((first & 0x3F) << 8) | readByte();
+            case 2:
+                if (first == 0x80) {
+                    return Integer.toUnsignedLong(Integer.reverseBytes(readIntLE()));
+                }
+                if (first == 0x81) {
+                    return readLongBE();
+                }
+                throw new IOException("Unknown length encoding 0x" + Integer.toHexString(first));
+            default:
+                encoded = true;
+                return first & 0x3F;
+        }
+    }
+
+    byte[] readString() throws IOException {
+        long length = readLengthOrEncoding();
+        if (!encoded) {
+            if (length > Integer.MAX_VALUE - 8) throw new IOException("String too large: " + length);
+            return readBytes((int) length);
+        }
+        switch ((int) length) {
+            case ENC_INT8:
+                return Long.toString((byte) readByte()).getBytes(StandardCharsets.ISO_8859_1);
+            case ENC_INT16:
+                return Long.toString((short) (readByte() | (readByte() << 8))).getBytes(StandardCharsets.ISO_8859_1);
+            case ENC_INT32:
+                return Long.toString(readIntLE()).getBytes(StandardCharsets.ISO_8859_1);
+            case ENC_LZF:
+                int compressedLength = readIntLength();
+                int uncompressedLength = readIntLength();
+                return lzfDecompress(readBytes(compressedLength), uncompressedLength);
+            default:
+                throw new IOException("Unknown string encoding " + length);
+        }
+    }
+
+    void skipString() throws IOException {
+        long length = readLengthOrEncoding();
+        if (!encoded) {
+            skip(length);
+            return;
+        }
+        switch ((int) length) {
+            case ENC_INT8:
+                skip(1);
+                break;
+            case ENC_INT16:
+                skip(2);
+                break;
+            case ENC_INT32:
+                skip(4);
+                break;
+            case ENC_LZF:
+                long compressedLength = readLength();
+                readLength();
+                skip(compressedLength);
+                break;
+            default:
+                throw new IOException("Unknown string encoding " + length);
+        }
+    }
+
+    // LZF as produced by Redis's lzf_compress: literal runs (ctrl < 32) and back references
+    static byte[] lzfDecompress(byte[] in, int outLength) throws IOException {
+        byte[] out = new byte[outLength];
+        int ip = 0;
+        int op = 0;
+        try {
+            while (ip < in.length) {
+                int ctrl = in[ip++] & 0xFF;
+                if (ctrl < 32) {
+                    int run = ctrl + 1;
+                    System.arraycopy(in, ip, out, op, run);
+                    ip += run;
+                    op += run;
+                } else {
+                    int length = ctrl >>> 5;
+                    int ref = op - ((ctrl & 0x1F) << 8) - 1;
+                    if (length == 7) {
+                        length += in[ip++] & 0xFF;
+                    }
+                    ref -= in[ip++] & 0xFF;
+                    length += 2;
+                    // Byte by byte: the reference may overlap the bytes being written
+                    for (int i = 0; i < length; i++) {
+                        out[op++] = out[ref++];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt LZF string");
+        }
+        if (op != outLength) throw new IOException("Corrupt LZF string");
+        return out;
+    }
+
+    private void fill() throws IOException {
+        crc = Crc64.update(crc, buf, crcPos, pos - crcPos);
+        consumedBefore += pos;
+        pos = 0;
+        crcPos = 0;
+        limit = 0;
+        int n = in.read(buf, 0, buf.length);
+        if (n < 0) throw new EOFException("Unexpected end of RDB");
+        limit = n;
+    }
+}
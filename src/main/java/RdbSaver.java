@@ -0,0 +1,246 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Writes RDB snapshots: SAVE in the calling thread, BGSAVE and the save points on a
+// background thread. Every save works from a point-in-time Keyspace snapshot, so clients
+// keep writing while the dump is produced; see Keyspace.beginSnapshot.
+class RdbSaver {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long CRON_INTERVAL_MILLIS = 100;
+    // After a failed background save, save points wait this long before trying again
+    private static final long RETRY_DELAY_MILLIS = 5000;
+    // Redis's default: after an hour if 1 key changed, 5 minutes if 100, a minute if 10000
+    private static final String DEFAULT_SAVE_POINTS = "3600 1 300 100 60 10000";
+
+    // save <seconds> <changes>: save once both have passed since the last save
+    private static final class SavePoint {
+        final long seconds;
+        final long changes;
+
+        SavePoint(long seconds, long changes) {
+            this.seconds = seconds;
+            this.changes = changes;
+        }
+    }
+
+    private final Keyspace keyspace;
+    private final AtomicBoolean saving = new AtomicBoolean();    // one save at a time
+    private volatile List<SavePoint> savePoints = parseSavePoints(DEFAULT_SAVE_POINTS);
+    private volatile String savePointsConfig = DEFAULT_SAVE_POINTS;
+    private volatile String dir = ".";
+    private volatile String dbfilename = "dump.rdb";
+
+    private volatile boolean bgsaveInProgress;
+    private volatile long bgsaveStartTime;
+    private volatile long lastSaveTime = System.currentTimeMillis();
+    private volatile boolean lastBgsaveOk = true;
+    private volatile long lastBgsaveSeconds = -1;
+    private volatile long lastBgsaveAttempt;
+
+    RdbSaver(Keyspace keyspace) {
+        this.keyspace = keyspace;
+    }
+
+    void setFile(String dir, String dbfilename) {
+        this.dir = dir;
+        this.dbfilename = dbfilename;
+    }
+
+    // "<seconds> <changes> ..." as in redis.conf; an empty string disables automatic saves
+    void setSavePoints(String config) {
+        savePoints = parseSavePoints(config);
+        savePointsConfig = config.trim();
+    }
+
+    String savePoints() {
+        return savePointsConfig;
+    }
+
+    long lastSaveTime() {
+        return lastSaveTime;
+    }
+
+    private static List<SavePoint> parseSavePoints(String config) {
+        String[] parts = config.trim().isEmpty() ? new String[0] : config.trim().split("\\s+");
+        if (parts.length % 2 != 0) throw new IllegalArgumentException("Invalid save parameters");
+        List<SavePoint> points = new ArrayList<>();
+        for (int i = 0; i < parts.length; i += 2) {
+            long seconds = Long.parseLong(parts[i]);
+            long changes = Long.parseLong(parts[i + 1]);
+            if (seconds < 1 || changes < 0) throw new IllegalArgumentException("Invalid save parameters");
+            points.add(new SavePoint(seconds, changes));
+        }
+        return points;
+    }
+
+    // SAVE: writes the dump in the calling thread. Returns null or the error reply text.
+    String save() {
+        if (!saving.compareAndSet(false, true)) {
+            return "ERR Background save already in progress";
+        }
+        try {
+            String error = writeDump();
+            return error == null ? null : "ERR " + error;
+        } finally {
+            saving.set(false);
+        }
+    }
+
+    // BGSAVE: returns false if a save is already running
+    boolean backgroundSave() {
+        if (!saving.compareAndSet(false, true)) return false;
+        bgsaveInProgress = true;
+        bgsaveStartTime = System.currentTimeMillis();
+        lastBgsaveAttempt = bgsaveStartTime;
+        new Thread(() -> {
+            try {
+                lastBgsaveOk = writeDump() == null;
+            } finally {
+                lastBgsaveSeconds = (System.currentTimeMillis() - bgsaveStartTime) / 1000;
+                bgsaveInProgress = false;
+                saving.set(false);
+            }
+        }, "rdb-bgsave").start();
+        return true;
+    }
+
+    // Checks the save points ten times a second, like serverCron
+    void startSavePolicy() {
+        Thread cron = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(CRON_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (savePointReached() && backgroundSave()) {
+                    System.out.println("Save point reached, background saving started");
+                }
+            }
+        }, "rdb-save-cron");
+        cron.setDaemon(true);
+        cron.start();
+    }
+
+    private boolean savePointReached() {
+        if (bgsaveInProgress || RdbParser.status.loading) return false;
+        long now = System.currentTimeMillis();
+        if (!lastBgsaveOk && now - lastBgsaveAttempt < RETRY_DELAY_MILLIS) return false;
+        long changes = keyspace.dirty();
+        for (SavePoint point : savePoints) {
+            if (changes >= point.changes && now - lastSaveTime >= point.seconds * 1000) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Writes to a temp file and renames it over the dump, so a crash mid-save never leaves
+    // a truncated file where the last good one was. Returns null or why the save failed.
+    private String writeDump() {
+        KeyspaceSnapshot snapshot = keyspace.beginSnapshot(RdbWriter::encodeStream);
+        if (snapshot == null) {
+            String error = "Error saving DB on disk: another snapshot is in progress";
+            System.out.println(error);
+            return error;
+        }
+        long start = System.nanoTime();
+        Path target = Paths.get(dir, dbfilename);
+        Path temp = Paths.get(dir, "temp-" + ProcessHandle.current().pid() + ".rdb");
+        try {
+            Files.createDirectories(target.toAbsolutePath().getParent());
+            try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+                writeRdb(keyspace, snapshot, out);
+                out.getChannel().force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            keyspace.clearDirty(snapshot.dirty);
+            lastSaveTime = System.currentTimeMillis();
+            System.out.println("DB saved on disk in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return null;
+        } catch (IOException e) {
+            String error = "Error saving DB on disk: " + e;
+            System.out.println(error);
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // nothing more to do
+            }
+            return error;
+        } finally {
+            keyspace.endSnapshot(snapshot);
+        }
+    }
+
+    // Streams a complete RDB of the snapshot to out, one stripe at a time so only a sixty-fourth
+    // of the keyspace is ever copied at once
+    static void writeRdb(Keyspace keyspace, KeyspaceSnapshot snapshot, OutputStream out) throws IOException {
+        RdbWriter writer = new RdbWriter(out, BUFFER_SIZE);
+        writer.write("REDIS0011".getBytes(StandardCharsets.ISO_8859_1));
+        writeAux(writer, "redis-ver", "7.2.0");
+        writeAux(writer, "redis-bits", "64");
+        writeAux(writer, "ctime", Long.toString(System.currentTimeMillis() / 1000));
+        writeAux(writer, "used-mem", Long.toString(keyspace.usedMemory()));
+        writeAux(writer, "aof-base", "0");
+        writer.writeByte(RdbParser.OPCODE_SELECTDB);
+        writer.writeLength(0);
+        writer.writeByte(RdbParser.OPCODE_RESIZEDB);
+        writer.writeLength(snapshot.keys);
+        writer.writeLength(snapshot.volatileKeys);
+
+        List<DictEntry> entries = new ArrayList<>();
+        for (int i = 0; i < Keyspace.STRIPES; i++) {
+            entries.clear();
+            keyspace.snapshotStripe(snapshot, i, entries);
+            long now = CachedClock.millis();
+            for (DictEntry entry : entries) {
+                if (entry.expiryTime > 0 && now > entry.expiryTime) continue;
+                byte[] stream = null;
+                if (entry.value instanceof Stream) {
+                    stream = keyspace.snapshotStream(snapshot, (Stream) entry.value);
+                    if (stream == null) continue;
+                }
+                if (entry.expiryTime > 0) {
+                    writer.writeByte(RdbParser.OPCODE_EXPIRETIME_MS);
+                    writer.writeLongLE(entry.expiryTime);
+                }
+                if (stream == null) {
+                    writer.writeByte(RdbParser.TYPE_STRING);
+                    writer.writeString(entry.key);
+                    writer.writeString((byte[]) entry.value);
+                } else {
+                    writer.writeByte(RdbParser.TYPE_STREAM_LISTPACKS);
+                    writer.writeString(entry.key);
+                    writer.write(stream);
+                }
+            }
+        }
+        writer.writeByte(RdbParser.OPCODE_EOF);
+        writer.writeLongLE(writer.crc());
+        writer.flush();
+    }
+
+    private static void writeAux(RdbWriter writer, String key, String value) throws IOException {
+        writer.writeByte(RdbParser.OPCODE_AUX);
+        writer.writeString(key.getBytes(StandardCharsets.ISO_8859_1));
+        writer.writeString(value.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    // The rdb_ fields of INFO persistence, named as in Redis
+    String info() {
+        long now = System.currentTimeMillis();
+        return String.format("rdb_changes_since_last_save:%d\r\nrdb_bgsave_in_progress:%d\r\nrdb_last_save_time:%d\r\n"
+                        + "rdb_last_bgsave_status:%s\r\nrdb_last_bgsave_time_sec:%d\r\nrdb_current_bgsave_time_sec:%d",
+                keyspace.dirty(), bgsaveInProgress ? 1 : 0, lastSaveTime / 1000, lastBgsaveOk ? "ok" : "err",
+                lastBgsaveSeconds, bgsaveInProgress ? (now - bgsaveStartTime) / 1000 : -1);
+    }
+}
@@ -0,0 +1,283 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// Buffered encoder for the primitive encodings of the RDB format, the counterpart of
+// RdbReader: lengths, strings and little endian numbers, with a running CRC64 of every byte
+// written so the trailer costs nothing extra. Also encodes streams the way RdbParser reads them.
+class RdbWriter {
+    // Entries per listpack node, Redis's default stream-node-max-entries
+    private static final int STREAM_NODE_MAX_ENTRIES = 100;
+    private static final int STREAM_ITEM_FLAG_SAMEFIELDS = 2;
+
+    private final OutputStream out;
+    private final byte[] buf;
+    private int pos;
+    private long crc;
+
+    RdbWriter(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buf = new byte[bufferSize];
+    }
+
+    void writeByte(int b) throws IOException {
+        if (pos == buf.length) flushBuffer();
+        buf[pos++] = (byte) b;
+    }
+
+    void write(byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (pos == buf.length) flushBuffer();
+            int n = Math.min(length, buf.length - pos);
+            System.arraycopy(bytes, offset, buf, pos, n);
+            pos += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    void writeLongLE(long value) throws IOException {
+        for (int i = 0; i < 8; i++) {
+            writeByte((int) (value >>> (8 * i)));
+        }
+    }
+
+    void writeLongBE(long value) throws IOException {
+        for (int i = 7; i >= 0; i--) {
+            writeByte((int) (value >>> (8 * i)));
+        }
+    }
+
+    // The shortest of the 6 bit, 14 bit, 32 bit and 64 bit length encodings
+    void writeLength(long length) throws IOException {
+        if (length < 1 << 6) {
+            writeByte((int) length);
+        } else if (length < 1 << 14) {
+            writeByte(0x40 | (int) (length >>> 8));
+            writeByte((int) length);
+        } else if (length <= 0xFFFFFFFFL) {
+            writeByte(0x80);
+            for (int i = 3; i >= 0; i--) {
+                writeByte((int) (length >>> (8 * i)));
+            }
+        } else {
+            writeByte(0x81);
+            writeLongBE(length);
+        }
+    }
+
+    void writeString(byte[] bytes) throws IOException {
+        writeLength(bytes.length);
+        write(bytes);
+    }
+
+    // CRC64 of everything written so far
+    long crc() throws IOException {
+        flushBuffer();
+        return crc;
+    }
+
+    void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos == 0) return;
+        crc = Crc64.update(crc, buf, 0, pos);
+        out.write(buf, 0, pos);
+        pos = 0;
+    }
+
+    // The value part of an RDB_TYPE_STREAM_LISTPACKS record: listpack nodes of up to 100
+    // entries keyed by their first ID, then the metadata and the consumer groups. The caller
+    // holds the stream lock.
+    static byte[] encodeStream(Stream stream) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RdbWriter writer = new RdbWriter(bytes, 8192);
+        try {
+            List<byte[]> nodeKeys = new ArrayList<>();
+            List<byte[]> nodes = new ArrayList<>();
+            StreamId cursor = StreamId.MIN;
+            List<StreamEntry> entries;
+            while (!(entries = stream.after(cursor, STREAM_NODE_MAX_ENTRIES)).isEmpty()) {
+                StreamId master = entries.get(0).id;
+                nodeKeys.add(ByteBuffer.allocate(16).putLong(master.ms).putLong(master.seq).array());
+                nodes.add(encodeStreamNode(master, entries));
+                cursor = entries.get(entries.size() - 1).id;
+            }
+            writer.writeLength(nodes.size());
+            for (int i = 0; i < nodes.size(); i++) {
+                writer.writeString(nodeKeys.get(i));
+                writer.writeString(nodes.get(i));
+            }
+
+            StreamId lastId = stream.lastId();
+            writer.writeLength(stream.length());
+            writer.writeLength(lastId.ms);
+            writer.writeLength(lastId.seq);
+
+            writer.writeLength(stream.groups.size());
+            for (ConsumerGroup group : stream.groups.values()) {
+                writer.writeString(group.name.getBytes(StandardCharsets.ISO_8859_1));
+                writer.writeLength(group.lastDelivered.ms);
+                writer.writeLength(group.lastDelivered.seq);
+                writer.writeLength(group.pending.size());
+                for (PendingEntry entry : group.pending.values()) {
+                    writer.writeLongBE(entry.id.ms);
+                    writer.writeLongBE(entry.id.seq);
+                    writer.writeLongLE(entry.deliveryTime);
+                    writer.writeLength(entry.deliveryCount);
+                }
+                writer.writeLength(group.consumers.size());
+                for (Map.Entry<String, Consumer> consumer : group.consumers.entrySet()) {
+                    writer.writeString(consumer.getKey().getBytes(StandardCharsets.ISO_8859_1));
+                    writer.writeLongLE(consumer.getValue().seenTime);
+                    writer.writeLength(consumer.getValue().pending.size());
+                    for (StreamId id : consumer.getValue().pending.keySet()) {
+                        writer.writeLongBE(id.ms);
+                        writer.writeLongBE(id.seq);
+                    }
+                }
+            }
+            writer.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);     // a ByteArrayOutputStream does not fail
+        }
+        return bytes.toByteArray();
+    }
+
+    // The master entry holds the first entry's field names; entries with the same names
+    // store only their values, as Redis does
+    private static byte[] encodeStreamNode(StreamId master, List<StreamEntry> entries) {
+        byte[][] first = entries.get(0).fields;
+        byte[][] masterFields = new byte[first.length / 2][];
+        for (int i = 0; i < masterFields.length; i++) {
+            masterFields[i] = first[2 * i];
+        }
+
+        Listpack lp = new Listpack();
+        lp.appendInt(entries.size());
+        lp.appendInt(0);        // deleted entries
+        lp.appendInt(masterFields.length);
+        for (byte[] field : masterFields) {
+            lp.appendString(field);
+        }
+        lp.appendInt(0);        // end of the master entry
+
+        for (StreamEntry entry : entries) {
+            int numFields = entry.fields.length / 2;
+            boolean sameFields = numFields == masterFields.length;
+            for (int i = 0; sameFields && i < numFields; i++) {
+                sameFields = Arrays.equals(entry.fields[2 * i], masterFields[i]);
+            }
+            lp.appendInt(sameFields ? STREAM_ITEM_FLAG_SAMEFIELDS : 0);
+            lp.appendInt(entry.id.ms - master.ms);
+            lp.appendInt(entry.id.seq - master.seq);
+            if (sameFields) {
+                for (int i = 0; i < numFields; i++) {
+                    lp.appendString(entry.fields[2 * i + 1]);
+                }
+                lp.appendInt(numFields + 3);
+            } else {
+                lp.appendInt(numFields);
+                for (byte[] part : entry.fields) {
+                    lp.appendString(part);
+                }
+                lp.appendInt(2 * numFields + 4);
+            }
+        }
+        return lp.finish();
+    }
+
+    // Builds a serialized listpack: a 6 byte header, the elements each followed by its
+    // length encoded backwards, and a 0xFF terminator
+    private static final class Listpack {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final byte[] element = new byte[9];
+        private int count;
+
+        void appendInt(long v) {
+            int length;
+            if (v >= 0 && v <= 127) {
+                element[0] = (byte) v;
+                length = 1;
+            } else if (v >= -4096 && v <= 4095) {
+                int encoded = (int) v & 0x1FFF;
+                element[0] = (byte) (0xC0 | (encoded >>> 8));
+                element[1] = (byte) encoded;
+                length = 2;
+            } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+                length = littleEndian(0xF1, v, 2);
+            } else if (v >= -(1 << 23) && v < 1 << 23) {
+                length = littleEndian(0xF2, v, 3);
+            } else if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+                length = littleEndian(0xF3, v, 4);
+            } else {
+                length = littleEndian(0xF4, v, 8);
+            }
+            body.write(element, 0, length);
+            writeBacklen(length);
+            count++;
+        }
+
+        void appendString(byte[] s) {
+            int header;
+            if (s.length <= 63) {
+                body.write(0x80 | s.length);
+                header = 1;
+            } else if (s.length <= 4095) {
+                body.write(0xE0 | (s.length >>> 8));
+                body.write(s.length & 0xFF);
+                header = 2;
+            } else {
+                body.write(0xF0);
+                for (int i = 0; i < 4; i++) {
+                    body.write(s.length >>> (8 * i));
+                }
+                header = 5;
+            }
+            body.write(s, 0, s.length);
+            writeBacklen(header + s.length);
+            count++;
+        }
+
+        byte[] finish() {
+            int total = 6 + body.size() + 1;
+            ByteBuffer lp = ByteBuffer.allocate(total).order(ByteOrder.LITTLE_ENDIAN);
+            lp.putInt(total);
+            lp.putShort((short) Math.min(count, 65535));    // 65535: count unknown, walk to find it
+            lp.put(body.toByteArray());
+            lp.put((byte) 0xFF);
+            return lp.array();
+        }
+
+        private int littleEndian(int encoding, long v, int bytes) {
+            element[0] = (byte) encoding;
+            for (int i = 0; i < bytes; i++) {
+                element[1 + i] = (byte) (v >>> (8 * i));
+            }
+            return 1 + bytes;
+        }
+
+        // Most significant 7 bit group first; every byte but the first has the high bit set
+        private void writeBacklen(int length) {
+            int groups = length <= 127 ? 1 : length < 16383 ? 2 : length < 2097151 ? 3 : length < 268435455 ? 4 : 5;
+            for (int g = groups - 1; g >= 0; g--) {
+                int bits = (length >>> (7 * g)) & 127;
+                body.write(g == groups - 1 ? bits : bits | 128);
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A replica as the master sees it: the connection the stream goes down, the offset the
+// replica last acknowledged with REPLCONF ACK, and its output buffer. The thread that applies
+// a write only copies the command into the buffer; a writer thread per replica sends whatever
+// has accumulated with one write and one flush, so a slow replica never slows a client down.
+// A replica whose buffer passes the output buffer limit is disconnected instead.
+class ReplicaLink {
+    final Socket socket;
+    final OutputStream out;     // the raw socket stream, written directly only by a full resync
+    final int listeningPort;    // from REPLCONF listening-port, 0 if the replica sent none
+    volatile long ackOffset;
+
+    // Buffer state, guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dataAvailable = lock.newCondition();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long bufferedBytes;     // pending plus the batch being written
+    private long overSoftLimitSince;
+    private boolean online;         // false while a full resync streams: commands just accumulate
+    private boolean closed;
+
+    ReplicaLink(Socket socket, int listeningPort) throws IOException {
+        this.socket = socket;
+        this.listeningPort = listeningPort;
+        this.out = socket.getOutputStream();
+        socket.setTcpNoDelay(true);     // every batch goes out at once, GETACKs included
+    }
+
+    // Starts the writer; the replica is dropped from replication if a write fails
+    void startWriter(Replication replication, boolean online) {
+        lock.lock();
+        try {
+            this.online = online;
+        } finally {
+            lock.unlock();
+        }
+        Thread writer = new Thread(() -> runWriter(replication), "replica-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Lets the writer send what accumulated during a full resync
+    void goOnline() {
+        lock.lock();
+        try {
+            online = true;
+            dataAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean online() {
+        lock.lock();
+        try {
+            return online;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long bufferedBytes() {
+        lock.lock();
+        try {
+            return bufferedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Queues bytes for the replica. Returns false if that takes the buffer past the limit,
+    // in which case the replica should be dropped.
+    boolean send(byte[] command, OutputBufferLimit limit) {
+        lock.lock();
+        try {
+            if (closed) return false;
+            pending.write(command, 0, command.length);
+            bufferedBytes += command.length;
+            if (!limit.allows(bufferedBytes, this)) {
+                System.out.println("Replica " + socket.getRemoteSocketAddress() + " closed for overcoming of output buffer limits ("
+                        + bufferedBytes + " bytes buffered)");
+                return false;
+            }
+            dataAvailable.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called by OutputBufferLimit with lock held: the time the buffer went over the soft
+    // limit and stayed there, reset when it drops below
+    long overSoftLimitSince(boolean over) {
+        if (!over) {
+            overSoftLimitSince = 0;
+        } else if (overSoftLimitSince == 0) {
+            overSoftLimitSince = System.currentTimeMillis();
+        }
+        return overSoftLimitSince;
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            dataAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    private void runWriter(Replication replication) {
+        ByteArrayOutputStream spare = new ByteArrayOutputStream();
+        while (true) {
+            ByteArrayOutputStream batch;
+            lock.lock();
+            try {
+                while (!closed && (!online || pending.size() == 0)) {
+                    dataAvailable.awaitUninterruptibly();
+                }
+                if (closed) return;
+                batch = pending;
+                pending = spare;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                batch.writeTo(out);
+                out.flush();
+            } catch (IOException e) {
+                System.out.println("Failed to send commands to replica: " + e.getMessage());
+                replication.drop(this);
+                return;
+            }
+
+            lock.lock();
+            try {
+                bufferedBytes -= batch.size();
+            } finally {
+                lock.unlock();
+            }
+            batch.reset();
+            spare = batch;
+        }
+    }
+}
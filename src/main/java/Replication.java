@@ -0,0 +1,333 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// The master side of replication: the replication ID, the replication offset (every byte
+// ever sent down the replication stream), a circular backlog of the most recent bytes and
+// the connected replicas. Writes enter the stream through feed() in the order they were
+// applied, so an offset names the same point of the data set on the master and on every
+// replica, and a replica that reconnects with an offset still in the backlog gets only
+// what it missed (+CONTINUE) instead of a full resync.
+// Writes only ever go into each replica's output buffer; see ReplicaLink.
+// A full resync is diskless: the RDB of a keyspace snapshot is written straight to the
+// replica's socket while writes made meanwhile are buffered for it, as with
+// repl-diskless-sync.
+class Replication {
+    static final int DEFAULT_BACKLOG_SIZE = 1 << 20;
+    private static final long SNAPSHOT_RETRY_MILLIS = 100;
+
+    private final Keyspace keyspace;
+    private final String replid = randomHexId();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<ReplicaLink> replicas = new CopyOnWriteArrayList<>();
+    private volatile int backlogSize = DEFAULT_BACKLOG_SIZE;
+    private volatile OutputBufferLimit outputBufferLimit = OutputBufferLimit.DEFAULT_REPLICA;
+
+    // Guarded by lock
+    private long offset;            // master_repl_offset: the offset of the last byte sent
+    // Created when the first replica attaches, like Redis. Byte n of the stream is at index
+    // (n - 1) % backlog.length while n >= offset - backlogHistory + 1.
+    private volatile byte[] backlog;
+    private int backlogHistory;     // bytes of the backlog in use
+
+    // Clients blocked in WAIT. Acks only advance a replica under ackLock, so a waiter
+    // counts each replica that passes its offset exactly once.
+    private final ReentrantLock ackLock = new ReentrantLock();
+    private final List<AckWaiter> ackWaiters = new ArrayList<>();
+
+    Replication(Keyspace keyspace) {
+        this.keyspace = keyspace;
+    }
+
+    void setBacklogSize(int bytes) {
+        backlogSize = bytes;
+    }
+
+    void setOutputBufferLimit(OutputBufferLimit limit) {
+        outputBufferLimit = limit;
+    }
+
+    OutputBufferLimit outputBufferLimit() {
+        return outputBufferLimit;
+    }
+
+    // Whether writes need to be fed at all: true once a replica ever attached
+    boolean active() {
+        return backlog != null;
+    }
+
+    // 40 random hex digits: a replication ID or an EOF mark
+    static String randomHexId() {
+        StringBuilder id = new StringBuilder(40);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 40; i++) {
+            id.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        return id.toString();
+    }
+
+    // Adds an encoded command to the stream and returns the offset just past it. Called with
+    // the lock that orders the write still held, like AppendOnlyFile.append.
+    long feed(byte[] command) {
+        lock.lock();
+        try {
+            offset += command.length;
+            if (backlog != null) {
+                appendToBacklog(command);
+            }
+            OutputBufferLimit limit = outputBufferLimit;
+            for (ReplicaLink replica : replicas) {
+                if (!replica.send(command, limit)) {
+                    drop(replica);
+                }
+            }
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void appendToBacklog(byte[] command) {
+        int from = command.length > backlog.length ? command.length - backlog.length : 0;
+        int index = (int) ((offset - (command.length - from)) % backlog.length);
+        int first = Math.min(command.length - from, backlog.length - index);
+        System.arraycopy(command, from, backlog, index, first);
+        System.arraycopy(command, from + first, backlog, 0, command.length - from - first);
+        backlogHistory = (int) Math.min(backlog.length, (long) backlogHistory + command.length);
+    }
+
+    // PSYNC <replid> <offset>: if the replica was following this master and every byte from
+    // offset on is still in the backlog, sends +CONTINUE and those bytes and attaches the
+    // replica. Returns false if a full resync is needed.
+    boolean tryPartialResync(ReplicaLink replica, String requestedReplid, long requestedOffset) throws IOException {
+        lock.lock();
+        try {
+            if (!replid.equals(requestedReplid) || backlog == null) return false;
+            long firstOffset = offset - backlogHistory + 1;
+            if (requestedOffset < firstOffset || requestedOffset > offset + 1) return false;
+
+            int length = (int) (offset + 1 - requestedOffset);
+            byte[] missed = new byte[length];
+            int index = (int) ((requestedOffset - 1) % backlog.length);
+            int first = Math.min(length, backlog.length - index);
+            System.arraycopy(backlog, index, missed, 0, first);
+            System.arraycopy(backlog, 0, missed, first, length - first);
+
+            OutputBufferLimit limit = outputBufferLimit;
+            replica.send(("+CONTINUE " + replid + "\r\n").getBytes(StandardCharsets.ISO_8859_1), limit);
+            replica.send(missed, limit);
+            attach(replica, requestedOffset - 1, true);
+            System.out.println("Partial resynchronization accepted, sending " + length + " bytes of backlog");
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Streams the data set to the replica as "$EOF:<mark>\r\n", an RDB and the mark. The
+    // replica is attached at the snapshot point, so every write after it is buffered for the
+    // replica and nothing is lost or sent twice. The replica's writer stays paused until the
+    // replica acknowledges the load, which also keeps the mark the last thing it reads of the
+    // transfer, and the output buffer limit applies to what accumulates meanwhile.
+    void fullResync(ReplicaLink replica) throws IOException {
+        long[] syncOffset = new long[1];
+        KeyspaceSnapshot snapshot;
+        while ((snapshot = keyspace.beginSnapshot(RdbWriter::encodeStream, () -> syncOffset[0] = attachAtSnapshotPoint(replica))) == null) {
+            try {
+                Thread.sleep(SNAPSHOT_RETRY_MILLIS);     // a save or rewrite is running
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to snapshot for a replica");
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            String mark = randomHexId();
+            replica.out.write(("+FULLRESYNC " + replid + " " + syncOffset[0] + "\r\n$EOF:" + mark + "\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            RdbSaver.writeRdb(keyspace, snapshot, replica.out);
+            replica.out.write(mark.getBytes(StandardCharsets.ISO_8859_1));
+            replica.out.flush();
+            System.out.println("Streamed the data set to replica " + replica.socket.getRemoteSocketAddress() + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms, waiting for it to load");
+        } catch (IOException e) {
+            drop(replica);
+            throw e;
+        } finally {
+            keyspace.endSnapshot(snapshot);
+        }
+    }
+
+    // Runs at the snapshot point with every stripe locked; returns the offset it stands for
+    private long attachAtSnapshotPoint(ReplicaLink replica) {
+        lock.lock();
+        try {
+            attach(replica, offset, false);
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The replica acknowledged its first offset after a full resync: send what was buffered
+    // and go live
+    void syncAcknowledged(ReplicaLink replica) {
+        if (replica.online()) return;
+        replica.goOnline();
+        System.out.println("Replica " + replica.socket.getRemoteSocketAddress() + " is online after "
+                + replica.bufferedBytes() + " bytes of buffered writes");
+    }
+
+    // Caller holds lock
+    private void attach(ReplicaLink replica, long syncedOffset, boolean online) {
+        if (backlog == null) {
+            backlog = new byte[backlogSize];
+        }
+        replica.ackOffset = syncedOffset;
+        replicas.add(replica);
+        replica.startWriter(this, online);
+    }
+
+    void drop(ReplicaLink replica) {
+        if (replicas.remove(replica)) {
+            System.out.println("Replica " + replica.socket.getRemoteSocketAddress() + " disconnected");
+        }
+        replica.close();
+    }
+
+    // REPLCONF ACK <offset>: wakes the waiters this ACK gives enough replicas. A replica still
+    // loading its full resync does not count yet.
+    void acknowledge(ReplicaLink replica, long ackOffset) {
+        ackLock.lock();
+        try {
+            long previous = replica.ackOffset;
+            if (ackOffset <= previous) return;
+            replica.ackOffset = ackOffset;
+            if (!replica.online()) return;
+            for (AckWaiter waiter : ackWaiters) {
+                if (previous < waiter.offset && ackOffset >= waiter.offset && ++waiter.acknowledged >= waiter.needed) {
+                    waiter.wake();
+                }
+            }
+        } finally {
+            ackLock.unlock();
+        }
+    }
+
+    // WAIT: returns the number of replicas that acknowledged offset, waiting up to timeout
+    // milliseconds for numReplicas of them, or for good if timeout is 0. Returns at once if
+    // enough already have, which includes a client that has written nothing.
+    int waitForReplicas(long offset, int numReplicas, long timeoutMillis) throws InterruptedException {
+        int acknowledged = countAcknowledged(offset);
+        if (acknowledged >= numReplicas) return acknowledged;
+
+        AckWaiter waiter = new AckWaiter(offset, numReplicas);
+        ackLock.lock();
+        try {
+            waiter.acknowledged = countAcknowledged(offset);
+            ackWaiters.add(waiter);
+        } finally {
+            ackLock.unlock();
+        }
+        try {
+            // Replicas ACK on their own only once a second; ask now
+            feed(RespDecoder.encode("REPLCONF", "GETACK", "*"));
+            long deadline = timeoutMillis == 0 ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            // A replica dropped after acknowledging can wake the waiter early, so recount
+            while ((acknowledged = countAcknowledged(offset)) < numReplicas && waiter.await(deadline)) {
+                // woken: check again
+            }
+            return acknowledged;
+        } finally {
+            ackLock.lock();
+            try {
+                ackWaiters.remove(waiter);
+            } finally {
+                ackLock.unlock();
+            }
+        }
+    }
+
+    private int countAcknowledged(long offset) {
+        int acknowledged = 0;
+        for (ReplicaLink replica : replicas) {
+            if (replica.ackOffset >= offset && replica.online()) acknowledged++;
+        }
+        return acknowledged;
+    }
+
+    // The master fields of INFO replication, named as in Redis
+    String info() {
+        lock.lock();
+        try {
+            StringBuilder info = new StringBuilder("role:master\r\nconnected_slaves:").append(replicas.size());
+            int i = 0;
+            for (ReplicaLink replica : replicas) {
+                info.append("\r\nslave").append(i++).append(":ip=").append(replica.socket.getInetAddress().getHostAddress())
+                        .append(",port=").append(replica.listeningPort).append(",offset=").append(replica.ackOffset);
+            }
+            info.append("\r\nmaster_replid:").append(replid)
+                    .append("\r\nmaster_repl_offset:").append(offset)
+                    .append("\r\nrepl_backlog_active:").append(backlog != null ? 1 : 0)
+                    .append("\r\nrepl_backlog_size:").append(backlog != null ? backlog.length : backlogSize)
+                    .append("\r\nrepl_backlog_first_byte_offset:").append(backlog != null ? offset - backlogHistory + 1 : 0)
+                    .append("\r\nrepl_backlog_histlen:").append(backlogHistory);
+            return info.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+// A client blocked in WAIT, with its own condition so an ACK wakes only the waiters it
+// completes rather than every blocked client
+class AckWaiter {
+    final long offset;
+    final int needed;
+    int acknowledged;       // guarded by the Replication ackLock
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition woken = lock.newCondition();
+    private boolean signalled;
+
+    AckWaiter(long offset, int needed) {
+        this.offset = offset;
+        this.needed = needed;
+    }
+
+    void wake() {
+        lock.lock();
+        try {
+            signalled = true;
+            woken.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns false once the deadline (System.nanoTime, 0 for none) passes without a wakeup
+    boolean await(long deadline) throws InterruptedException {
+        lock.lock();
+        try {
+            while (!signalled) {
+                if (deadline == 0) {
+                    woken.await();
+                    continue;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                woken.awaitNanos(remaining);
+            }
+            signalled = false;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
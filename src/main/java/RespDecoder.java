@@ -0,0 +1,219 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Incremental RESP decoder working directly on bytes. Input can arrive in arbitrary chunks;
+// next() returns each complete command as one byte[] per argument and remembers how far it
+// got into a partial command, so a large bulk string is never rescanned. Bulk lengths are
+// honoured, so values may contain \r\n or any non-UTF-8 byte.
+class RespDecoder {
+    private static final byte[] EMPTY = new byte[0];
+    // Redis's limits: proto-max-bulk-len, the multibulk element count and the longest line
+    // accepted without its CRLF, so a length header cannot make the server allocate at will
+    static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+    static final int MAX_MULTIBULK_LENGTH = 1024 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    // A partly received bulk string grows the buffer by at most this much per read, so the
+    // buffer tracks what actually arrived rather than what the header announced
+    private static final int MAX_READ_AHEAD = 1024 * 1024;
+
+    private final int retainedCapacity;
+    private byte[] buf;
+    private int start;          // first byte not consumed yet
+    private int end;            // one past the last byte received
+    private long compacted;     // bytes consumed before the current start of buf
+
+    private byte[][] args;      // command being assembled, null between commands
+    private int argIndex;
+    private int bulkLength = -1;
+
+    // retainedCapacity is kept allocated between reads; 0 releases the buffer whenever
+    // everything has been consumed, so idle event-loop connections hold no buffer at all
+    RespDecoder(int retainedCapacity) {
+        this.retainedCapacity = retainedCapacity;
+        this.buf = retainedCapacity > 0 ? new byte[retainedCapacity] : EMPTY;
+    }
+
+    // Reads once from the stream; returns the byte count, or -1 at end of stream
+    int readFrom(InputStream in) throws IOException {
+        int missing = bulkLength >= 0 ? bulkLength + 2 - (end - start) : 0;
+        ensureWritable(Math.max(4096, Math.min(missing, MAX_READ_AHEAD)));
+        int bytesRead = in.read(buf, end, buf.length - end);
+        if (bytesRead > 0) {
+            end += bytesRead;
+        }
+        return bytesRead;
+    }
+
+    void feed(byte[] src, int offset, int length) {
+        ensureWritable(length);
+        System.arraycopy(src, offset, buf, end, length);
+        end += length;
+    }
+
+    void feed(ByteBuffer src) {
+        int length = src.remaining();
+        ensureWritable(length);
+        src.get(buf, end, length);
+        end += length;
+    }
+
+    // Bytes of input consumed so far, commands and lines alike. A replica counts its
+    // replication offset with this, from the raw stream rather than by re-encoding commands.
+    long consumed() {
+        return compacted + start;
+    }
+
+    // Returns the next complete command, or null if more input is needed.
+    // Lines that do not start a RESP array are skipped.
+    byte[][] next() throws IOException {
+        try {
+            while (true) {
+                if (args == null) {
+                    int lineEnd = findLineEnd();
+                    if (lineEnd < 0) return checkLineLength("too big inline request");
+                    boolean isArray = buf[start] == '*';
+                    int numElements = isArray ? parseInt(start + 1, lineEnd) : 0;
+                    if (numElements > MAX_MULTIBULK_LENGTH) {
+                        throw new ProtocolException("Protocol error: invalid multibulk length");
+                    }
+                    start = lineEnd + 2;
+                    if (numElements <= 0) continue;
+                    args = new byte[numElements][];
+                    argIndex = 0;
+                }
+
+                while (argIndex < args.length) {
+                    if (bulkLength < 0) {
+                        int lineEnd = findLineEnd();
+                        if (lineEnd < 0) return checkLineLength("too big bulk count string");
+                        if (buf[start] != '$') {
+                            throw new ProtocolException("Protocol error: expected '$', got '" + (char) buf[start] + "'");
+                        }
+                        int length = parseInt(start + 1, lineEnd);
+                        if (length < 0 || length > MAX_BULK_LENGTH) {
+                            throw new ProtocolException("Protocol error: invalid bulk length");
+                        }
+                        bulkLength = length;
+                        start = lineEnd + 2;
+                    }
+                    if (end - start < bulkLength + 2) return null;
+                    args[argIndex++] = Arrays.copyOfRange(buf, start, start + bulkLength);
+                    start += bulkLength + 2;
+                    bulkLength = -1;
+                }
+
+                byte[][] command = args;
+                args = null;
+                return command;
+            }
+        } finally {
+            releaseIfConsumed();
+        }
+    }
+
+    // Returns the next CRLF terminated line (e.g. a simple string reply), or null if incomplete
+    String nextLine() {
+        int lineEnd = findLineEnd();
+        if (lineEnd < 0) return null;
+        String line = new String(buf, start, lineEnd - start, StandardCharsets.ISO_8859_1);
+        start = lineEnd + 2;
+        releaseIfConsumed();
+        return line;
+    }
+
+    // Hands over the bytes received but not consumed yet, for a caller that reads the rest of
+    // a transfer straight from the socket (a streamed RDB)
+    byte[] takeBuffered() {
+        byte[] buffered = Arrays.copyOfRange(buf, start, end);
+        start = end;
+        releaseIfConsumed();
+        return buffered;
+    }
+
+    // Handlers see each argument as a Latin-1 string: one char per byte, so the exact bytes
+    // round-trip when encoded back with ISO_8859_1, and compact strings store them as bytes
+    static String[] toStrings(byte[][] command) {
+        String[] commandParts = new String[command.length];
+        for (int i = 0; i < command.length; i++) {
+            commandParts[i] = new String(command[i], StandardCharsets.ISO_8859_1);
+        }
+        return commandParts;
+    }
+
+    // The inverse of toStrings for a single argument, giving back its exact bytes
+    static byte[] toBytes(String commandPart) {
+        return commandPart.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // Encodes a command as a RESP array of bulk strings, the form next() reads back; used for
+    // the AOF and the replication stream
+    static byte[] encode(String... commandParts) {
+        StringBuilder command = new StringBuilder("*").append(commandParts.length).append("\r\n");
+        for (String part : commandParts) {
+            command.append('$').append(part.length()).append("\r\n").append(part).append("\r\n");
+        }
+        return toBytes(command.toString());
+    }
+
+    private int findLineEnd() {
+        for (int i = start; i + 1 < end; i++) {
+            if (buf[i] == '\r' && buf[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // A line still without its CRLF: more input is needed unless it is already too long
+    private byte[][] checkLineLength(String error) throws ProtocolException {
+        if (end - start > MAX_LINE_LENGTH) {
+            throw new ProtocolException("Protocol error: " + error);
+        }
+        return null;
+    }
+
+    private int parseInt(int from, int to) throws ProtocolException {
+        boolean negative = from < to && buf[from] == '-';
+        int i = negative ? from + 1 : from;
+        if (i >= to) {
+            throw new ProtocolException("Protocol error: invalid length");
+        }
+        int value = 0;
+        for (; i < to; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Integer.MAX_VALUE - digit) / 10) {
+                throw new ProtocolException("Protocol error: invalid length");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private void ensureWritable(int length) {
+        if (buf.length - end >= length) return;
+        int pending = end - start;
+        if (pending + length <= buf.length) {
+            System.arraycopy(buf, start, buf, 0, pending);
+        } else {
+            byte[] grown = new byte[Math.max(pending + length, Math.max(buf.length * 2, retainedCapacity))];
+            System.arraycopy(buf, start, grown, 0, pending);
+            buf = grown;
+        }
+        compacted += start;
+        start = 0;
+        end = pending;
+    }
+
+    private void releaseIfConsumed() {
+        if (start < end) return;
+        compacted += start;
+        start = 0;
+        end = 0;
+        if (buf.length > retainedCapacity) {
+            buf = retainedCapacity > 0 ? new byte[retainedCapacity] : EMPTY;
+        }
+    }
+}
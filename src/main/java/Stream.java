@@ -0,0 +1,294 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Append-only stream stored in fixed-size blocks, like the listpacks of Redis's rax. Each
+// block delta-encodes its entries' milliseconds against the block's first ID and keeps the
+// field names of its first entry once; later entries with the same names store only their
+// values. Blocks and the entries inside them are sorted by ID, so a range lookup is two
+// binary searches followed by a sequential walk: O(log n + k).
+// Callers hold lock around every access, so unrelated streams never contend.
+class Stream {
+    static final int BLOCK_CAPACITY = 100;
+    // Rough per-entry cost of the ID slots and payload array header
+    private static final long ENTRY_OVERHEAD = 32;
+
+    private static final class Block {
+        final long baseMs;
+        final int[] msDeltas = new int[BLOCK_CAPACITY];
+        final long[] seqs = new long[BLOCK_CAPACITY];
+        final byte[][] masterFields;    // field names shared by entries that have the same ones
+        // Per entry: the values only when sameFields, otherwise name, value, name, value...
+        final byte[][][] payloads = new byte[BLOCK_CAPACITY][][];
+        final boolean[] sameFields = new boolean[BLOCK_CAPACITY];
+        int first;      // entries before this index were trimmed
+        int count;
+        long bytes;     // memory estimate of the live entries and the block itself
+
+        Block(long baseMs, byte[][] fields) {
+            this.baseMs = baseMs;
+            this.masterFields = new byte[fields.length / 2][];
+            this.bytes = ENTRY_OVERHEAD * 4;
+            for (int i = 0; i < masterFields.length; i++) {
+                masterFields[i] = fields[2 * i];
+                bytes += masterFields[i].length;
+            }
+        }
+
+        int live() {
+            return count - first;
+        }
+
+        long ms(int i) {
+            return baseMs + msDeltas[i];
+        }
+
+        boolean fits(long ms) {
+            return count < BLOCK_CAPACITY && ms - baseMs <= Integer.MAX_VALUE;
+        }
+
+        void append(long ms, long seq, byte[][] fields) {
+            msDeltas[count] = (int) (ms - baseMs);
+            seqs[count] = seq;
+            if (hasMasterFields(fields)) {
+                byte[][] values = new byte[masterFields.length][];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = fields[2 * i + 1];
+                }
+                payloads[count] = values;
+                sameFields[count] = true;
+            } else {
+                payloads[count] = fields;
+            }
+            bytes += entryBytes(count);
+            count++;
+        }
+
+        long entryBytes(int i) {
+            long size = ENTRY_OVERHEAD;
+            for (byte[] part : payloads[i]) {
+                size += part.length;
+            }
+            return size;
+        }
+
+        // Drops the n oldest live entries
+        void trimHead(int n) {
+            for (int i = first; i < first + n; i++) {
+                bytes -= entryBytes(i);
+                payloads[i] = null;
+            }
+            first += n;
+        }
+
+        private boolean hasMasterFields(byte[][] fields) {
+            if (fields.length != masterFields.length * 2) return false;
+            for (int i = 0; i < masterFields.length; i++) {
+                if (!Arrays.equals(masterFields[i], fields[2 * i])) return false;
+            }
+            return true;
+        }
+
+        StreamEntry entry(int i) {
+            byte[][] fields;
+            if (sameFields[i]) {
+                byte[][] values = payloads[i];
+                fields = new byte[values.length * 2][];
+                for (int f = 0; f < values.length; f++) {
+                    fields[2 * f] = masterFields[f];
+                    fields[2 * f + 1] = values[f];
+                }
+            } else {
+                fields = payloads[i];
+            }
+            return new StreamEntry(new StreamId(ms(i), seqs[i]), fields);
+        }
+
+        int compareLast(StreamId id) {
+            return StreamId.compare(ms(count - 1), seqs[count - 1], id.ms, id.seq);
+        }
+
+        // Index of the first live entry with an ID >= id, or count if there is none
+        int lowerBound(StreamId id) {
+            int low = first;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (StreamId.compare(ms(mid), seqs[mid], id.ms, id.seq) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    final ReentrantLock lock = new ReentrantLock();
+    final Map<String, ConsumerGroup> groups = new LinkedHashMap<>();
+    // Epoch of the last snapshot that has this stream's content, see Keyspace.beforeStreamWrite
+    long snapshotEpoch;
+
+    // Live blocks are blocks[firstBlock..blockCount); trimming drops them from the front
+    private Block[] blocks = new Block[4];
+    private int firstBlock;
+    private int blockCount;
+    private long length;
+    private long lastMs;
+    private long lastSeq;
+    private long memoryUsage;
+
+    long length() {
+        return length;
+    }
+
+    // 0-0 for a stream that never had an entry
+    StreamId lastId() {
+        return new StreamId(lastMs, lastSeq);
+    }
+
+    long memoryUsage() {
+        return memoryUsage;
+    }
+
+    // The caller has checked that id is greater than lastId()
+    void add(StreamId id, byte[][] fields) {
+        Block tail = blockCount > firstBlock ? blocks[blockCount - 1] : null;
+        if (tail == null || !tail.fits(id.ms)) {
+            tail = new Block(id.ms, fields);
+            if (blockCount == blocks.length) {
+                if (firstBlock > blocks.length / 2) {
+                    // Mostly trimmed: slide the live blocks down instead of growing
+                    System.arraycopy(blocks, firstBlock, blocks, 0, blockCount - firstBlock);
+                    Arrays.fill(blocks, blockCount - firstBlock, blockCount, null);
+                    blockCount -= firstBlock;
+                    firstBlock = 0;
+                } else {
+                    blocks = Arrays.copyOf(blocks, blockCount * 2);
+                }
+            }
+            blocks[blockCount++] = tail;
+            memoryUsage += tail.bytes;
+        }
+        long before = tail.bytes;
+        tail.append(id.ms, id.seq, fields);
+        memoryUsage += tail.bytes - before;
+        length++;
+        lastMs = id.ms;
+        lastSeq = id.seq;
+    }
+
+    // Used by the RDB loader: the last ID outlives the entry it belonged to after XDEL/XTRIM
+    void restoreLastId(StreamId id) {
+        if (id.compareTo(lastId()) > 0) {
+            lastMs = id.ms;
+            lastSeq = id.seq;
+        }
+    }
+
+    // MAXLEN: keeps the newest maxLen entries and returns how many were removed. The
+    // approximate form only drops whole blocks, at most limit entries (limit < 0: no limit),
+    // so it costs O(1) per block and may leave up to a block more than maxLen.
+    long trimToLength(long maxLen, boolean approximate, long limit) {
+        long removed = 0;
+        while (length > maxLen) {
+            Block head = blocks[firstBlock];
+            if (length - head.live() >= maxLen) {
+                if (approximate && limit >= 0 && removed + head.live() > limit) break;
+                removed += removeHeadBlock();
+            } else {
+                if (approximate) break;
+                int n = (int) (length - maxLen);
+                trimHead(head, n);
+                removed += n;
+            }
+        }
+        return removed;
+    }
+
+    // MINID: removes entries with an ID below minId, with the same approximate form as above
+    long trimBefore(StreamId minId, boolean approximate, long limit) {
+        long removed = 0;
+        while (length > 0) {
+            Block head = blocks[firstBlock];
+            if (head.compareLast(minId) < 0) {
+                if (approximate && limit >= 0 && removed + head.live() > limit) break;
+                removed += removeHeadBlock();
+            } else {
+                int n = head.lowerBound(minId) - head.first;
+                if (!approximate && n > 0) {
+                    trimHead(head, n);
+                    removed += n;
+                }
+                break;
+            }
+        }
+        return removed;
+    }
+
+    private int removeHeadBlock() {
+        Block head = blocks[firstBlock];
+        blocks[firstBlock++] = null;
+        if (firstBlock == blockCount) {
+            firstBlock = 0;
+            blockCount = 0;
+        }
+        length -= head.live();
+        memoryUsage -= head.bytes;
+        return head.live();
+    }
+
+    private void trimHead(Block head, int n) {
+        long before = head.bytes;
+        head.trimHead(n);
+        memoryUsage -= before - head.bytes;
+        length -= n;
+    }
+
+    // Entries with start <= ID <= end in ID order, at most count of them (count < 0: no limit)
+    List<StreamEntry> range(StreamId start, StreamId end, int count) {
+        List<StreamEntry> result = new ArrayList<>();
+        int blockIndex = firstBlockEndingAtOrAfter(start);
+        if (blockIndex == blockCount) return result;
+        int i = blocks[blockIndex].lowerBound(start);
+        for (; blockIndex < blockCount; blockIndex++) {
+            Block block = blocks[blockIndex];
+            for (i = Math.max(i, block.first); i < block.count; i++) {
+                if (count >= 0 && result.size() >= count) return result;
+                if (StreamId.compare(block.ms(i), block.seqs[i], end.ms, end.seq) > 0) return result;
+                result.add(block.entry(i));
+            }
+            i = 0;
+        }
+        return result;
+    }
+
+    // Entries with an ID strictly greater than id, as XREAD wants them
+    List<StreamEntry> after(StreamId id, int count) {
+        if (StreamId.compare(lastMs, lastSeq, id.ms, id.seq) <= 0) return new ArrayList<>();
+        return range(id.next(), StreamId.MAX, count);
+    }
+
+    // The entry with exactly this ID, or null if there is none
+    StreamEntry get(StreamId id) {
+        List<StreamEntry> entries = range(id, id, 1);
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    private int firstBlockEndingAtOrAfter(StreamId id) {
+        int low = firstBlock;
+        int high = blockCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blocks[mid].compareLast(id) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,11 @@
+// One entry as handed out by a range query; blocks keep entries in a packed form and only
+// the entries a reader actually asked for are materialized
+final class StreamEntry {
+    final StreamId id;
+    final byte[][] fields;      // name, value, name, value...
+
+    StreamEntry(StreamId id, byte[][] fields) {
+        this.id = id;
+        this.fields = fields;
+    }
+}
@@ -0,0 +1,60 @@
+// A stream entry ID: milliseconds and sequence number, kept as numbers so comparing two IDs
+// never parses a string
+final class StreamId implements Comparable<StreamId> {
+    static final StreamId MIN = new StreamId(0, 0);
+    static final StreamId MAX = new StreamId(Long.MAX_VALUE, Long.MAX_VALUE);
+
+    final long ms;
+    final long seq;
+
+    StreamId(long ms, long seq) {
+        this.ms = ms;
+        this.seq = seq;
+    }
+
+    // Parses "<ms>-<seq>" or "<ms>"; a missing sequence number becomes missingSeq
+    static StreamId parse(String id, long missingSeq) {
+        int dash = id.indexOf('-');
+        if (dash < 0) {
+            return new StreamId(parsePart(id), missingSeq);
+        }
+        return new StreamId(parsePart(id.substring(0, dash)), parsePart(id.substring(dash + 1)));
+    }
+
+    private static long parsePart(String part) {
+        long value = Long.parseLong(part);
+        if (value < 0 || part.charAt(0) == '+') throw new NumberFormatException("negative ID part");
+        return value;
+    }
+
+    // The smallest ID greater than this one, for exclusive ranges
+    StreamId next() {
+        if (seq != Long.MAX_VALUE) return new StreamId(ms, seq + 1);
+        return ms == Long.MAX_VALUE ? this : new StreamId(ms + 1, 0);
+    }
+
+    static int compare(long ms1, long seq1, long ms2, long seq2) {
+        if (ms1 != ms2) return ms1 < ms2 ? -1 : 1;
+        return Long.compare(seq1, seq2);
+    }
+
+    @Override
+    public int compareTo(StreamId other) {
+        return compare(ms, seq, other.ms, other.seq);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof StreamId && compareTo((StreamId) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(ms) * 31 + Long.hashCode(seq);
+    }
+
+    @Override
+    public String toString() {
+        return ms + "-" + seq;
+    }
+}
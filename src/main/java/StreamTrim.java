@@ -0,0 +1,61 @@
+// The trimming options MAXLEN|MINID [=|~] threshold [LIMIT count] of XADD and XTRIM
+final class StreamTrim {
+    // Like Redis, ~ trims at most 100 blocks worth of entries per call unless LIMIT says otherwise
+    private static final long DEFAULT_APPROXIMATE_LIMIT = 100L * Stream.BLOCK_CAPACITY;
+
+    final boolean byMinId;
+    final boolean approximate;
+    final long maxLen;
+    final StreamId minId;
+    final long limit;           // -1: no limit
+    final int nextIndex;        // first argument after the options
+
+    private StreamTrim(boolean byMinId, boolean approximate, long maxLen, StreamId minId, long limit, int nextIndex) {
+        this.byMinId = byMinId;
+        this.approximate = approximate;
+        this.maxLen = maxLen;
+        this.minId = minId;
+        this.limit = limit;
+        this.nextIndex = nextIndex;
+    }
+
+    // Parses the options starting at parts[i]; the exception message is the error reply text
+    static StreamTrim parse(String[] parts, int i) {
+        boolean byMinId = "MINID".equalsIgnoreCase(parts[i++]);
+        boolean approximate = false;
+        if (i < parts.length && ("~".equals(parts[i]) || "=".equals(parts[i]))) {
+            approximate = "~".equals(parts[i++]);
+        }
+        if (i >= parts.length) throw new IllegalArgumentException("ERR syntax error");
+        long maxLen = 0;
+        StreamId minId = null;
+        try {
+            if (byMinId) {
+                minId = StreamId.parse(parts[i++], 0);
+            } else {
+                maxLen = Long.parseLong(parts[i++]);
+                if (maxLen < 0) throw new IllegalArgumentException("ERR The MAXLEN argument must be >= 0.");
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(byMinId ? "ERR Invalid stream ID specified as stream command argument"
+                    : "ERR value is not an integer or out of range");
+        }
+        long limit = approximate ? DEFAULT_APPROXIMATE_LIMIT : -1;
+        if (i + 1 < parts.length && "LIMIT".equalsIgnoreCase(parts[i])) {
+            if (!approximate) throw new IllegalArgumentException("ERR syntax error, LIMIT cannot be used without the special ~ option");
+            try {
+                limit = Long.parseLong(parts[i + 1]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("ERR value is not an integer or out of range");
+            }
+            if (limit == 0) limit = -1;
+            i += 2;
+        }
+        return new StreamTrim(byMinId, approximate, maxLen, minId, limit, i);
+    }
+
+    // Returns the number of entries removed; the caller holds the stream lock
+    long apply(Stream stream) {
+        return byMinId ? stream.trimBefore(minId, approximate, limit) : stream.trimToLength(maxLen, approximate, limit);
+    }
+}
@@ -0,0 +1,66 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A reader parked by XREAD BLOCK. The first XADD to any of its keys after the IDs it has
+// seen wakes only this thread, which then reads the streams again from those IDs, so it gets
+// every entry added meanwhile and in stream order; later XADDs see it is already woken.
+class StreamWaiter {
+    final String[] keys;
+    private final StreamId[] lastSeen;     // only entries after these IDs are wanted
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition woken = lock.newCondition();
+    private boolean done;
+    private boolean signalled;
+
+    StreamWaiter(String[] keys, StreamId[] lastSeen) {
+        this.keys = keys;
+        this.lastSeen = lastSeen;
+    }
+
+    // Called by XADD; returns false if the waiter was already woken, gave up, or only wants
+    // entries after a later ID
+    boolean offer(int keyIndex, StreamId id) {
+        if (id.compareTo(lastSeen[keyIndex]) <= 0) return false;
+        lock.lock();
+        try {
+            if (done) return false;
+            done = true;
+            signalled = true;
+            woken.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Marks the waiter finished, so later XADDs skip it
+    void cancel() {
+        lock.lock();
+        try {
+            done = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits until woken; timeoutMillis 0 waits forever. Returns false on timeout.
+    boolean await(long timeoutMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            while (!done) {
+                if (timeoutMillis == 0) {
+                    woken.await();
+                } else {
+                    if (remaining <= 0) break;
+                    remaining = woken.awaitNanos(remaining);
+                }
+            }
+            done = true;
+            return signalled;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Blocked XREAD readers by stream key, like Redis's blocking_keys: XADD wakes only the
+// readers of the key it wrote to. Keys are Latin-1 strings, one char per key byte.
+class StreamWaiters {
+    private final ConcurrentHashMap<String, Set<StreamWaiter>> waitersByKey = new ConcurrentHashMap<>();
+
+    // Register before checking the streams, so an XADD racing with the check is not missed
+    void register(StreamWaiter waiter) {
+        for (String key : waiter.keys) {
+            waitersByKey.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(waiter);
+        }
+    }
+
+    void unregister(StreamWaiter waiter) {
+        for (String key : waiter.keys) {
+            waitersByKey.computeIfPresent(key, (k, waiters) -> {
+                waiters.remove(waiter);
+                return waiters.isEmpty() ? null : waiters;
+            });
+        }
+    }
+
+    boolean hasWaiters(String key) {
+        return waitersByKey.containsKey(key);
+    }
+
+    // Called by XADD after the entry is appended and the stream lock released. A reader that
+    // registers after the append but before this call still sees the entry, because readers
+    // register before they read.
+    void entryAdded(String key, StreamId id) {
+        Set<StreamWaiter> waiters = waitersByKey.get(key);
+        if (waiters == null) return;
+        for (StreamWaiter waiter : waiters) {
+            for (int i = 0; i < waiter.keys.length; i++) {
+                if (waiter.keys[i].equals(key)) {
+                    waiter.offer(i, id);
+                    break;
+                }
+            }
+        }
+    }
+}
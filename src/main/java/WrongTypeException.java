@@ -0,0 +1,7 @@
+class WrongTypeException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    WrongTypeException() {
+        super("WRONGTYPE Operation against a key holding the wrong kind of value");
+    }
+}